@@ -0,0 +1,21 @@
+package editortrees;
+
+import java.util.PrimitiveIterator;
+
+/**
+ * An in-order cursor over the characters of an EditTree that hands out
+ * primitive chars, so walking a large buffer doesn't box every character.
+ */
+public interface CharIterator extends PrimitiveIterator.OfInt {
+
+	/**
+	 * @return the next character
+	 * @throws java.util.NoSuchElementException if there are no more characters
+	 */
+	char nextChar();
+
+	@Override
+	default int nextInt() {
+		return nextChar();
+	}
+}
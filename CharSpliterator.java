@@ -0,0 +1,96 @@
+package editortrees;
+
+import java.util.ConcurrentModificationException;
+import java.util.Spliterator;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntConsumer;
+
+// The spliterator behind chars() in both kinds of tree. It covers a range of
+// positions and only opens a CharIterator at the start of that range once
+// traversal begins, so splitting costs one descent and no iterator state. The
+// tree says where to split, so that each side is read from the top of a
+// subtree.
+
+class CharSpliterator implements Spliterator.OfInt {
+	private final EditBuffer<?> text;
+	// given from and to, a position strictly between them to split at, or -1
+	private final IntBinaryOperator splitPoint;
+	private int pos;
+	private final int end;
+	private final int treeSize;
+	private CharIterator chars; // null until traversal begins
+
+	/**
+	 * @param text       the tree to read
+	 * @param splitPoint where text splits the range from..to-1: a position
+	 *                   between from+1 and to-1, or -1 if there is none
+	 */
+	CharSpliterator(EditBuffer<?> text, IntBinaryOperator splitPoint) {
+		this(text, splitPoint, 0, text.size(), text.size());
+	}
+
+	private CharSpliterator(EditBuffer<?> text, IntBinaryOperator splitPoint, int pos, int end, int treeSize) {
+		this.text = text;
+		this.splitPoint = splitPoint;
+		this.pos = pos;
+		this.end = end;
+		this.treeSize = treeSize;
+	}
+
+	private CharIterator start() {
+		if (this.treeSize != this.text.size()) {
+			throw new ConcurrentModificationException();
+		}
+		return this.text.charIterator(this.pos);
+	}
+
+	@Override
+	public boolean tryAdvance(IntConsumer action) {
+		if (this.pos >= this.end) {
+			return false;
+		}
+		if (this.chars == null) {
+			this.chars = start();
+		}
+		this.pos++;
+		action.accept(this.chars.nextChar());
+		return true;
+	}
+
+	@Override
+	public void forEachRemaining(IntConsumer action) {
+		if (this.pos >= this.end) {
+			return;
+		}
+		CharIterator iter = this.chars == null ? start() : this.chars;
+		int remaining = this.end - this.pos;
+		this.pos = this.end;
+		for (int i = 0; i < remaining; i++) {
+			action.accept(iter.nextChar());
+		}
+	}
+
+	@Override
+	public Spliterator.OfInt trySplit() {
+		if (this.chars != null) {
+			return null;
+		}
+		int at = this.splitPoint.applyAsInt(this.pos, this.end);
+		if (at < 0) {
+			return null;
+		}
+		CharSpliterator prefix = new CharSpliterator(this.text, this.splitPoint, this.pos, at, this.treeSize);
+		this.pos = at;
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize() {
+		return this.end - this.pos;
+	}
+
+	@Override
+	public int characteristics() {
+		return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.NONNULL;
+	}
+}
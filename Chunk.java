@@ -0,0 +1,236 @@
+package editortrees;
+
+import editortrees.Node.Code;
+
+// A node in a ChunkedEditTree. Instead of one character per node, each chunk
+// holds a packed run of characters, so the per-node bookkeeping (child
+// references, height, size) is paid once per chunk rather than once per
+// character.
+//
+// A chunk of a memory-mapped file is "mapped": its characters stay in the
+// file (a range of source) and chars is null until the chunk is first edited.
+// Mapped chunks may be much longer than the tree's chunk capacity. Their line
+// breaks are not counted until a line query first needs them, so that
+// opening a file doesn't read it; until then lineBreaks is -1, as is newlines
+// in every subtree holding such a chunk. Filling in a count leaves the
+// characters alone, so it is done even in chunks that a snapshot shares.
+
+public class Chunk {
+	public final static Chunk NULL_CHUNK = new Chunk();
+
+	char[] chars; // the packed characters; only the first length are in use
+	CharSequence source; // for a mapped chunk, the text its characters are in
+	int start; // for a mapped chunk, the index in source of its first character
+	int length;
+	Chunk left, right; // subtrees
+	int size; // number of characters in this subtree
+	int height;
+	int lineBreaks; // number of '\n' characters in this chunk; -1 until counted
+	int newlines; // number of '\n' characters in this subtree; -1 until counted
+	boolean holdsMapped; // whether any chunk in this subtree is mapped
+	Object owner; // token of the tree that may change this chunk in place
+
+	private Chunk() {
+		this.chars = new char[0];
+		this.left = null;
+		this.right = null;
+		this.height = -1;
+	}
+
+	public Chunk(char[] chars, int length) {
+		this.chars = chars;
+		this.length = length;
+		this.left = NULL_CHUNK;
+		this.right = NULL_CHUNK;
+		countLineBreaks();
+		update();
+	}
+
+	/**
+	 * A mapped chunk holding characters [start, start + length) of source,
+	 * which must not change for as long as the chunk is in use
+	 * 
+	 * @param source
+	 * @param start
+	 * @param length
+	 */
+	public Chunk(CharSequence source, int start, int length) {
+		this.source = source;
+		this.start = start;
+		this.length = length;
+		this.left = NULL_CHUNK;
+		this.right = NULL_CHUNK;
+		this.lineBreaks = -1;
+		update();
+	}
+
+	/**
+	 * A chunk with the same characters, children and counts as c, that can be
+	 * changed without changing c: a heap chunk gets its own copy of the
+	 * characters, while a mapped one goes on sharing the text it refers to.
+	 * 
+	 * @param c
+	 * @param owner owner token of the tree the copy is made for
+	 */
+	Chunk(Chunk c, Object owner) {
+		this.chars = c.chars == null ? null : c.chars.clone();
+		this.source = c.source;
+		this.start = c.start;
+		this.length = c.length;
+		this.left = c.left;
+		this.right = c.right;
+		this.size = c.size;
+		this.height = c.height;
+		this.lineBreaks = c.lineBreaks;
+		this.newlines = c.newlines;
+		this.holdsMapped = c.holdsMapped;
+		this.owner = owner;
+	}
+
+	/**
+	 * @param i offset within this chunk
+	 * @return the character at that offset
+	 */
+	char charAt(int i) {
+		return this.chars != null ? this.chars[i] : this.source.charAt(this.start + i);
+	}
+
+	/**
+	 * Copies count characters starting at offset from into dst.
+	 */
+	void copyTo(int from, char[] dst, int offset, int count) {
+		if (this.chars != null) {
+			System.arraycopy(this.chars, from, dst, offset, count);
+		} else {
+			for (int i = 0; i < count; i++) {
+				dst[offset + i] = this.source.charAt(this.start + from + i);
+			}
+		}
+	}
+
+	/**
+	 * Copies a mapped chunk's characters onto the heap so it can be edited. The
+	 * caller updates the ancestors, whose holdsMapped may change.
+	 */
+	void materialize() {
+		if (this.chars == null) {
+			char[] chars = new char[this.length];
+			copyTo(0, chars, 0, this.length);
+			this.chars = chars;
+			this.source = null;
+			if (this.lineBreaks < 0) {
+				countLineBreaks();
+			}
+			update();
+		}
+	}
+
+	/**
+	 * Recounts lineBreaks. Call after a change to this chunk's characters that
+	 * isn't accounted for one character at a time. A mapped chunk's are left
+	 * to be counted when they are needed.
+	 */
+	void countLineBreaks() {
+		if (this.chars == null) {
+			this.lineBreaks = -1;
+			return;
+		}
+		int count = 0;
+		for (int i = 0; i < this.length; i++) {
+			if (charAt(i) == '\n') {
+				count++;
+			}
+		}
+		this.lineBreaks = count;
+	}
+
+	/**
+	 * @return the number of '\n' characters in this chunk, counting them now
+	 *         if that hasn't been done
+	 */
+	int lineBreaks() {
+		if (this.lineBreaks < 0) {
+			int count = 0;
+			for (int i = 0; i < this.length; i++) {
+				if (charAt(i) == '\n') {
+					count++;
+				}
+			}
+			this.lineBreaks = count;
+		}
+		return this.lineBreaks;
+	}
+
+	/**
+	 * @return the number of '\n' characters in this subtree, counting those of
+	 *         the chunks that haven't been counted
+	 */
+	int newlines() {
+		if (this.newlines < 0) {
+			this.newlines = this.left.newlines() + this.lineBreaks() + this.right.newlines();
+		}
+		return this.newlines;
+	}
+
+	/**
+	 * Recomputes size, height and newlines from the children. Call after any
+	 * change to this chunk's characters or subtrees.
+	 */
+	void update() {
+		this.size = this.left.size + this.length + this.right.size;
+		this.height = 1 + Math.max(this.left.height, this.right.height);
+		if (this.left.newlines < 0 || this.lineBreaks < 0 || this.right.newlines < 0) {
+			this.newlines = -1;
+		} else {
+			this.newlines = this.left.newlines + this.lineBreaks + this.right.newlines;
+		}
+		this.holdsMapped = this.chars == null || this.left.holdsMapped || this.right.holdsMapped;
+	}
+
+	/**
+	 * @return the inorder position, in characters, of this chunk's first
+	 *         character within its own subtree.
+	 */
+	public int rank() {
+		return this.left.size;
+	}
+
+	public Code balance() {
+		if (this.left.height > this.right.height) {
+			return Code.LEFT;
+		} else if (this.left.height < this.right.height) {
+			return Code.RIGHT;
+		}
+		return Code.SAME;
+	}
+
+	public void debugString(StringBuilder sb) {
+		if (this == NULL_CHUNK)
+			return;
+		if (this.chars != null) {
+			sb.append(this.chars, 0, this.length);
+		} else {
+			sb.append(this.source, this.start, this.start + this.length);
+		}
+		sb.append(this.rank());
+		sb.append(this.balance());
+		sb.append(", ");
+		this.left.debugString(sb);
+		this.right.debugString(sb);
+	}
+
+	/**
+	 * @param owner owner token of the tree the chunks are copied for
+	 * @return a copy of this subtree, with all new chunks
+	 */
+	public Chunk copy(Object owner) {
+		if (this == NULL_CHUNK) {
+			return NULL_CHUNK;
+		}
+		Chunk result = new Chunk(this, owner);
+		result.left = this.left.copy(owner);
+		result.right = this.right.copy(owner);
+		result.update();
+		return result;
+	}
+}
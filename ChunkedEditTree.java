@@ -0,0 +1,1171 @@
+package editortrees;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+// A text tree like EditTree whose storage is a height-balanced tree of packed
+// char[] chunks rather than one Node per character. Ranks and sizes are
+// measured in characters, so get, add, delete, split and concatenate stay
+// O(log N) while a large buffer costs little more than two bytes per
+// character.
+//
+// It shares the EditBuffer operations with EditTree and behaves the same way
+// in them. Its own shape-related methods (height, toDebugString,
+// totalRotationCount) describe the chunk tree.
+
+public class ChunkedEditTree implements EditBuffer<ChunkedEditTree> {
+
+	public static final int DEFAULT_CHUNK_CAPACITY = 256;
+	// the length of the chunks a mapped file starts out as
+	public static final int MAPPED_CHUNK = 1 << 16;
+	// characters per mapping; a multiple of MAPPED_CHUNK, and at most 1 GB
+	private static final int REGION_CHARS = 1 << 29;
+
+	private final int chunkCapacity;
+	private Chunk root;
+	private long singleRotations;
+	private long doubleRotations; // each counts as two in totalRotationCount()
+	private EditTreeMetrics metrics; // null unless setMetrics() was called
+	private long levels; // levels split and joined through by this tree's edits
+	private int pathLength; // chunks on the path of the most recent insert or remove
+	private Owner owner = new Owner(); // stamped on the chunks this tree may change in place
+
+	/**
+	 * Construct an empty tree using the default chunk capacity
+	 */
+	public ChunkedEditTree() {
+		this(DEFAULT_CHUNK_CAPACITY);
+	}
+
+	/**
+	 * Construct an empty tree whose chunks hold at most chunkCapacity characters
+	 *
+	 * @param chunkCapacity
+	 * @throws IllegalArgumentException if chunkCapacity is less than 2
+	 */
+	public ChunkedEditTree(int chunkCapacity) {
+		if (chunkCapacity < 2) {
+			throw new IllegalArgumentException("chunk capacity must be at least 2");
+		}
+		this.chunkCapacity = chunkCapacity;
+		this.root = Chunk.NULL_CHUNK;
+	}
+
+	/**
+	 * Create a tree whose toString is s, in O(N) time, using the default chunk
+	 * capacity.
+	 *
+	 * @param s
+	 */
+	public ChunkedEditTree(String s) {
+		this(s, DEFAULT_CHUNK_CAPACITY);
+	}
+
+	/**
+	 * Create a tree whose toString is s, in O(N) time. Every chunk but the last
+	 * is filled to capacity.
+	 *
+	 * @param s
+	 * @param chunkCapacity
+	 */
+	public ChunkedEditTree(String s, int chunkCapacity) {
+		this(chunkCapacity);
+		Timing t = begin();
+		int chunkCount = (s.length() + chunkCapacity - 1) / chunkCapacity;
+		this.root = build(s, 0, chunkCount);
+		end(t, EditTreeMetrics.Operation.BUILD, 0, s.length(), chunkCount);
+	}
+
+	/**
+	 * Make this tree be a copy of e, with all new chunks, but the same shape and
+	 * contents.
+	 *
+	 * @param e
+	 */
+	public ChunkedEditTree(ChunkedEditTree e) {
+		this(e.chunkCapacity);
+		this.root = e.root.copy(this.owner);
+	}
+
+	/**
+	 * Opens a file without reading it onto the heap. The file is memory-mapped
+	 * and the tree starts out as mapped chunks of MAPPED_CHUNK characters that
+	 * refer to ranges of the mapping. Edits copy only about half a chunk
+	 * capacity of characters around them onto the heap, so a file of gigabytes
+	 * opens with a heap footprint of a few bytes per 64K characters. Opening
+	 * doesn't read the file: the line breaks in a chunk are counted the first
+	 * time a line query needs them. The file must not change while the tree
+	 * is in use.
+	 * 
+	 * Characters are read straight from the mapped bytes, so the charset must
+	 * have a fixed width: ISO-8859-1, US-ASCII (read as ISO-8859-1), UTF-16BE or
+	 * UTF-16LE. ASCII text in UTF-8 can be opened as US-ASCII.
+	 *
+	 * @param file
+	 * @param charset
+	 * @return a tree holding the text of the file, with the default chunk
+	 *         capacity
+	 * @throws IOException              if the file can't be opened or mapped
+	 * @throws IllegalArgumentException if the charset is not one of the above,
+	 *                                  or the file ends in part of a character
+	 *                                  or holds more than Integer.MAX_VALUE
+	 *                                  characters
+	 */
+	public static ChunkedEditTree map(Path file, Charset charset) throws IOException {
+		int width = 2;
+		ByteOrder order = ByteOrder.BIG_ENDIAN;
+		if (charset.equals(StandardCharsets.ISO_8859_1) || charset.equals(StandardCharsets.US_ASCII)) {
+			width = 1;
+		} else if (charset.equals(StandardCharsets.UTF_16LE)) {
+			order = ByteOrder.LITTLE_ENDIAN;
+		} else if (!charset.equals(StandardCharsets.UTF_16BE)) {
+			throw new IllegalArgumentException("only fixed-width charsets can be mapped, not " + charset);
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long bytes = channel.size();
+			if (bytes % width != 0 || bytes / width > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("not a whole number of characters, or too many");
+			}
+			int length = (int) (bytes / width);
+			ChunkedEditTree result = new ChunkedEditTree(DEFAULT_CHUNK_CAPACITY);
+			Timing t = result.begin();
+			Chunk[] chunks = new Chunk[(int) (((long) length + MAPPED_CHUNK - 1) / MAPPED_CHUNK)];
+			int count = 0;
+			// the mappings stay valid after the channel is closed
+			for (int at = 0; at < length; at += Math.min(REGION_CHARS, length - at)) {
+				int regionLength = Math.min(REGION_CHARS, length - at);
+				ByteBuffer buffer = channel.map(MapMode.READ_ONLY, (long) at * width, (long) regionLength * width)
+						.order(order);
+				CharSequence region = width == 1 ? new Latin1(buffer) : buffer.asCharBuffer();
+				for (int start = 0; start < regionLength; start += MAPPED_CHUNK) {
+					chunks[count++] = result.newChunk(region, start, Math.min(MAPPED_CHUNK, regionLength - start));
+				}
+			}
+			result.root = link(chunks, 0, count);
+			result.end(t, EditTreeMetrics.Operation.BUILD, 0, length, count);
+			return result;
+		}
+	}
+
+	// the bytes of a buffer read as ISO-8859-1 characters
+	private static class Latin1 implements CharSequence {
+		private final ByteBuffer bytes;
+
+		Latin1(ByteBuffer bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int length() {
+			return this.bytes.limit();
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) (this.bytes.get(index) & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			ByteBuffer range = this.bytes.duplicate();
+			range.position(start);
+			range.limit(end);
+			return new Latin1(range.slice());
+		}
+
+		@Override
+		public String toString() {
+			char[] chars = new char[length()];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = charAt(i);
+			}
+			return new String(chars);
+		}
+	}
+
+	// builds a perfectly balanced tree out of chunks [lo, hi) of the array
+	private static Chunk link(Chunk[] chunks, int lo, int hi) {
+		if (lo >= hi) {
+			return Chunk.NULL_CHUNK;
+		}
+		int mid = (lo + hi) >>> 1;
+		Chunk result = chunks[mid];
+		result.left = link(chunks, lo, mid);
+		result.right = link(chunks, mid + 1, hi);
+		result.update();
+		return result;
+	}
+
+	// builds a perfectly balanced tree out of chunks [lo, hi) of s
+	private Chunk build(CharSequence s, int lo, int hi) {
+		if (lo >= hi) {
+			return Chunk.NULL_CHUNK;
+		}
+		int mid = (lo + hi) >>> 1;
+		int start = mid * this.chunkCapacity;
+		int end = Math.min(start + this.chunkCapacity, s.length());
+		char[] chars = new char[end - start];
+		for (int i = start; i < end; i++) {
+			chars[i - start] = s.charAt(i);
+		}
+		Chunk result = newChunk(chars, chars.length);
+		result.left = build(s, lo, mid);
+		result.right = build(s, mid + 1, hi);
+		result.update();
+		return result;
+	}
+
+	/**
+	 * @return the maximum number of characters held by one chunk
+	 */
+	public int chunkCapacity() {
+		return this.chunkCapacity;
+	}
+
+	/**
+	 * @return the number of rotations of chunks since this tree was created; a
+	 *         double rotation counts as two. The count stops at
+	 *         Integer.MAX_VALUE.
+	 */
+	public int totalRotationCount() {
+		return (int) Math.min(this.singleRotations + 2 * this.doubleRotations, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Starts counting and timing this tree's operations in metrics, as
+	 * EditTree does. The nodes an operation visits are chunks: those on the
+	 * path for add(ch, pos), delete(pos) and get(pos), and those split and
+	 * joined through for the rest; characters copied or read are counted as
+	 * they are for EditTree.
+	 * 
+	 * @param metrics where to report, or null to stop reporting
+	 */
+	@Override
+	public void setMetrics(EditTreeMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public EditTreeMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	// starts timing an operation if there are metrics or a Flight Recorder
+	// recording takes EditTreeEvents; returns null if it is not timed
+	private Timing begin() {
+		return Timing.begin(this.metrics, this.singleRotations, this.doubleRotations, this.levels);
+	}
+
+	// reports the operation timed by t, on the characters from pos to
+	// pos + length, which visited chunks besides the levels this tree split
+	// and joined through meanwhile
+	private void end(Timing t, EditTreeMetrics.Operation op, int pos, int length, long nodes) {
+		if (t != null) {
+			t.end(this.metrics, op, size(), pos, length, nodes, this.singleRotations, this.doubleRotations,
+					this.levels);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return new String(this.toCharArray());
+	}
+
+	@Override
+	public char[] toCharArray() {
+		char[] result = new char[this.root.size];
+		fill(this.root, result, 0);
+		return result;
+	}
+
+	/**
+	 * Like the classic debug string, but each entry is a whole chunk followed by
+	 * its rank (in characters) and balance code.
+	 */
+	public String toDebugString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("[");
+		this.root.debugString(sb);
+		if (sb.length() > 2) {
+			sb.delete(sb.length() - 2, sb.length());
+		}
+		sb.append("]");
+		return sb.toString();
+	}
+
+	@Override
+	public void add(char ch) {
+		add(ch, size());
+	}
+
+	@Override
+	public void add(char ch, int pos) throws IndexOutOfBoundsException {
+		if (pos < 0 || pos > size()) {
+			throw new IndexOutOfBoundsException();
+		}
+		Timing t = begin();
+		claim();
+		localize(pos);
+		this.pathLength = 0;
+		this.root = insert(this.root, pos, ch);
+		end(t, EditTreeMetrics.Operation.ADD, pos, 1, this.pathLength);
+	}
+
+	/**
+	 * Inserts all of s at position pos in O(k + log N): s is packed into its own
+	 * balanced chunk tree, which is joined in between the two halves of this
+	 * tree.
+	 */
+	@Override
+	public void add(CharSequence s, int pos) throws IndexOutOfBoundsException {
+		if (pos < 0 || pos > size()) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (s.length() == 0) {
+			return;
+		}
+		Timing t = begin();
+		claim();
+		Chunk[] parts = new Chunk[2];
+		split(this.root, pos, parts);
+		int chunkCount = (s.length() + this.chunkCapacity - 1) / this.chunkCapacity;
+		Chunk middle = build(s, 0, chunkCount);
+		this.root = concatenate(concatenate(parts[0], middle), parts[1]);
+		end(t, EditTreeMetrics.Operation.ADD, pos, s.length(), 0);
+	}
+
+	@Override
+	public char get(int pos) throws IndexOutOfBoundsException {
+		if (pos < 0 || pos >= size()) {
+			throw new IndexOutOfBoundsException();
+		}
+		Timing t = begin();
+		if (t == null) {
+			return charAt(pos);
+		}
+		Chunk n = this.root;
+		int rest = pos;
+		int visited = 1;
+		while (true) {
+			int rank = n.left.size;
+			if (rest < rank) {
+				n = n.left;
+			} else if (rest < rank + n.length) {
+				char result = n.charAt(rest - rank);
+				end(t, EditTreeMetrics.Operation.GET, pos, 1, visited);
+				return result;
+			} else {
+				rest -= rank + n.length;
+				n = n.right;
+			}
+			visited++;
+		}
+	}
+
+	// the character at pos, which is in range
+	private char charAt(int pos) {
+		Chunk n = this.root;
+		while (true) {
+			int rank = n.left.size;
+			if (pos < rank) {
+				n = n.left;
+			} else if (pos < rank + n.length) {
+				return n.charAt(pos - rank);
+			} else {
+				pos -= rank + n.length;
+				n = n.right;
+			}
+		}
+	}
+
+	/**
+	 * @return the height of the chunk tree
+	 */
+	public int height() {
+		return this.root.height;
+	}
+
+	@Override
+	public int size() {
+		return this.root.size;
+	}
+
+	@Override
+	public char delete(int pos) throws IndexOutOfBoundsException {
+		if (pos < 0 || pos >= size()) {
+			throw new IndexOutOfBoundsException();
+		}
+		Timing t = begin();
+		char toBeFound = charAt(pos);
+		claim();
+		localize(pos);
+		this.pathLength = 0;
+		this.root = remove(this.root, pos);
+		int depth = this.pathLength;
+		// the chunk that lost the character holds pos or ends just before it
+		mergeUnderfull(pos);
+		mergeUnderfull(pos - 1);
+		end(t, EditTreeMetrics.Operation.DELETE, pos, 1, depth);
+		return toBeFound;
+	}
+
+	/**
+	 * Splits and joins chunks, in O(log N).
+	 */
+	@Override
+	public ChunkedEditTree delete(int start, int length) throws IndexOutOfBoundsException {
+		if (start < 0 || length >= this.size() - start) {
+			throw new IndexOutOfBoundsException(
+					(start < 0) ? "negative first argument to delete" : "delete range extends past end of string");
+		}
+		// the splits and concatenate are timed as part of this delete, not on
+		// their own
+		Timing t = begin();
+		ChunkedEditTree t2 = this.splitOff(start);
+		ChunkedEditTree t3 = t2.splitOff(length);
+		this.append(t3);
+		end(t, EditTreeMetrics.Operation.DELETE, start, length, t2.levels);
+		return t2;
+	}
+
+	@Override
+	public String get(int pos, int length) throws IndexOutOfBoundsException {
+		checkRange(pos, length);
+		Timing t = begin();
+		char[] result = new char[length];
+		fill(this.root, result, 0, pos, pos + length);
+		end(t, EditTreeMetrics.Operation.GET, pos, length, length);
+		return new String(result);
+	}
+
+	@Override
+	public void get(int pos, int length, char[] dst, int dstOffset) throws IndexOutOfBoundsException {
+		checkRange(pos, length);
+		if (dstOffset < 0 || length > dst.length - dstOffset) {
+			throw new IndexOutOfBoundsException();
+		}
+		fill(this.root, dst, dstOffset, pos, pos + length);
+	}
+
+	/**
+	 * Heap buffers are filled in place through their backing array, others a
+	 * chunk at a time.
+	 */
+	@Override
+	public void get(int pos, int length, CharBuffer dst) throws IndexOutOfBoundsException {
+		checkRange(pos, length);
+		if (dst.remaining() < length) {
+			throw new BufferOverflowException();
+		}
+		if (dst.hasArray()) {
+			this.get(pos, length, dst.array(), dst.arrayOffset() + dst.position());
+			dst.position(dst.position() + length);
+			return;
+		}
+		CharIterator iter = this.charIterator(pos);
+		for (int i = 0; i < length; i++) {
+			dst.put(iter.nextChar());
+		}
+	}
+
+	// throws unless [pos, pos + length) is a (possibly empty) range of this tree
+	private void checkRange(int pos, int length) {
+		int size = this.size();
+		if (pos < 0 || length < 0 || pos > size || length > size - pos) {
+			throw new IndexOutOfBoundsException();
+		}
+	}
+
+	@Override
+	public int lineCount() {
+		return this.root.newlines() + 1;
+	}
+
+	@Override
+	public int lineOf(int pos) throws IndexOutOfBoundsException {
+		if (pos < 0 || pos > size()) {
+			throw new IndexOutOfBoundsException();
+		}
+		int line = 0;
+		Chunk n = this.root;
+		while (n != Chunk.NULL_CHUNK) {
+			int rank = n.left.size;
+			if (pos <= rank) {
+				n = n.left;
+			} else if (pos < rank + n.length) {
+				// pos is inside this chunk: count the line breaks before it
+				line += n.left.newlines();
+				for (int i = 0; i < pos - rank; i++) {
+					if (n.charAt(i) == '\n') {
+						line++;
+					}
+				}
+				return line;
+			} else {
+				line += n.left.newlines() + n.lineBreaks();
+				pos -= rank + n.length;
+				n = n.right;
+			}
+		}
+		return line;
+	}
+
+	/**
+	 * Only the chunks before the line, and the subtrees passed on the way to
+	 * it, have their line breaks counted.
+	 */
+	@Override
+	public int offsetOfLine(int line) throws IndexOutOfBoundsException {
+		if (line < 0) {
+			throw new IndexOutOfBoundsException();
+		}
+		int offset = 0;
+		Chunk n = this.root;
+		// line is now the number of '\n's still to pass
+		while (line > 0) {
+			if (n == Chunk.NULL_CHUNK) {
+				// there are fewer than line + 1 lines
+				throw new IndexOutOfBoundsException();
+			} else if (line <= n.left.newlines()) {
+				n = n.left;
+			} else if (line <= n.left.newlines() + n.lineBreaks()) {
+				line -= n.left.newlines();
+				offset += n.left.size;
+				for (int i = 0;; i++) {
+					if (n.charAt(i) == '\n' && --line == 0) {
+						return offset + i + 1;
+					}
+				}
+			} else {
+				line -= n.left.newlines() + n.lineBreaks();
+				offset += n.left.size + n.length;
+				n = n.right;
+			}
+		}
+		return offset;
+	}
+
+	@Override
+	public String getLine(int line) throws IndexOutOfBoundsException {
+		int start = this.offsetOfLine(line);
+		int end = this.find("\n", start);
+		if (end < 0) {
+			end = this.size();
+		}
+		return this.get(start, end - start);
+	}
+
+	/**
+	 * Append the contents of the other tree to this one in O(log N), by
+	 * detaching other's first chunk and using it as the join key.
+	 */
+	@Override
+	public void concatenate(ChunkedEditTree other) throws IllegalArgumentException {
+		if (this == other) {
+			throw new IllegalArgumentException();
+		} else if (other.size() == 0) {
+			return;
+		}
+		Timing t = begin();
+		int added = other.size();
+		append(other);
+		end(t, EditTreeMetrics.Operation.CONCATENATE, size() - added, added, 0);
+	}
+
+	// concatenate without the checks or the timing
+	private void append(ChunkedEditTree other) {
+		claim();
+		if (other.owner != this.owner) {
+			// other's chunks come under this tree's token only when copied, so
+			// none may be changed in place from now on
+			other.owner.shared = true;
+		}
+		int seam = this.size();
+		this.root = concatenate(this.root, other.root);
+		other.root = Chunk.NULL_CHUNK;
+		mergeUnderfull(seam);
+		mergeUnderfull(seam - 1);
+	}
+
+	// joins a and b, using the first chunk of b as the join key
+	private Chunk concatenate(Chunk a, Chunk b) {
+		if (b == Chunk.NULL_CHUNK) {
+			return a;
+		} else if (a == Chunk.NULL_CHUNK) {
+			return b;
+		}
+		Chunk key = b;
+		while (key.left != Chunk.NULL_CHUNK) {
+			key = key.left;
+		}
+		Chunk rest = removeFirst(b);
+		return join(a, key, rest);
+	}
+
+	@Override
+	public ChunkedEditTree split(int pos) throws IndexOutOfBoundsException {
+		if (pos < 0 || pos >= this.size()) {
+			throw new IndexOutOfBoundsException();
+		}
+		Timing t = begin();
+		ChunkedEditTree result = splitOff(pos);
+		end(t, EditTreeMetrics.Operation.SPLIT, pos, result.size(), 0);
+		return result;
+	}
+
+	// split without the checks or the timing
+	private ChunkedEditTree splitOff(int pos) {
+		claim();
+		Chunk[] parts = new Chunk[2];
+		split(this.root, pos, parts);
+		this.root = parts[0];
+		ChunkedEditTree result = new ChunkedEditTree(this.chunkCapacity);
+		result.owner = this.owner;
+		result.root = parts[1];
+		this.mergeUnderfull(pos - 1);
+		result.mergeUnderfull(0);
+		return result;
+	}
+
+	/**
+	 * Returns a tree with the same contents as this one, in O(1) time. The two
+	 * trees share every chunk; from then on an edit to either one copies the
+	 * O(log N) chunks on its path, with their characters, instead of changing
+	 * shared ones. Mapped chunks go on sharing the file.
+	 */
+	@Override
+	public ChunkedEditTree snapshot() {
+		this.owner.shared = true;
+		ChunkedEditTree result = new ChunkedEditTree(this.chunkCapacity);
+		result.root = this.root;
+		result.owner = this.owner;
+		result.metrics = this.metrics;
+		return result;
+	}
+
+	/**
+	 * the token that marks the chunks a tree may change in place, as in
+	 * EditTree
+	 */
+	private static class Owner {
+		boolean shared;
+	}
+
+	// called before every edit: makes sure this tree holds a token that no
+	// snapshot shares
+	private void claim() {
+		if (this.owner.shared) {
+			this.owner = new Owner();
+		}
+	}
+
+	// a chunk that this tree may change: c itself if it carries this tree's
+	// token, otherwise a copy that does. The caller links the result in.
+	private Chunk own(Chunk c) {
+		if (c.owner == this.owner) {
+			return c;
+		}
+		return new Chunk(c, this.owner);
+	}
+
+	private Chunk newChunk(char[] chars, int length) {
+		Chunk result = new Chunk(chars, length);
+		result.owner = this.owner;
+		return result;
+	}
+
+	private Chunk newChunk(CharSequence source, int start, int length) {
+		Chunk result = new Chunk(source, start, length);
+		result.owner = this.owner;
+		return result;
+	}
+
+	@Override
+	public int find(String s) {
+		return find(s, 0);
+	}
+
+	@Override
+	public int find(String s, int pos) {
+		if (s.isEmpty()) {
+			return 0;
+		}
+		if (pos >= this.size()) {
+			return -1;
+		}
+		pos = Math.max(pos, 0);
+		Timing t = begin();
+		MatchIterator matches = new MatchIterator(s, this.charIterator(pos), pos);
+		int result = matches.hasNext() ? matches.nextInt() : -1;
+		int read = (result < 0 ? size() : result + s.length()) - pos;
+		end(t, EditTreeMetrics.Operation.FIND, pos, s.length(), read);
+		return result;
+	}
+
+	@Override
+	public IntStream findAll(String s) {
+		if (s.isEmpty()) {
+			return IntStream.rangeClosed(0, this.size());
+		}
+		return StreamSupport.intStream(Spliterators.spliteratorUnknownSize(new MatchIterator(s, this.charIterator(), 0),
+				Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.SORTED | Spliterator.NONNULL), false);
+	}
+
+	@Override
+	public IntStream chars() {
+		return StreamSupport.intStream(new CharSpliterator(this, this::splitPoint), false);
+	}
+
+	@Override
+	public CharIterator charIterator() {
+		return new ChunkIterator();
+	}
+
+	@Override
+	public CharIterator charIterator(int pos) throws IndexOutOfBoundsException {
+		if (pos < 0 || pos > size()) {
+			throw new IndexOutOfBoundsException();
+		}
+		return new ChunkIterator(pos);
+	}
+
+	// where chars() splits the positions from..to-1 between two parallel tasks.
+	// A chunk can be read from any position, so the range is simply halved.
+	private int splitPoint(int from, int to) {
+		return to - from < 2 ? -1 : (from + to) >>> 1;
+	}
+
+	// Cuts any mapped chunk holding position pos - 1 or pos that is longer than
+	// the chunk capacity down to a window of half the capacity around pos, so
+	// that the edit about to happen there only copies that window onto the
+	// heap. The rest of the chunk stays mapped, split off on either side.
+	private void localize(int pos) {
+		for (int p = Math.max(pos - 1, 0); p <= pos && p < size() && this.root.holdsMapped; p++) {
+			int[] first = new int[1];
+			Chunk n = chunkAt(p, first);
+			int start = first[0];
+			if (n.chars == null && n.length > this.chunkCapacity) {
+				int from = Math.max(start, p - this.chunkCapacity / 4);
+				int to = Math.min(start + n.length, from + this.chunkCapacity / 2);
+				Chunk[] parts = new Chunk[2];
+				split(this.root, to, parts);
+				Chunk rest = parts[1];
+				split(parts[0], from, parts);
+				this.root = concatenate(concatenate(parts[0], parts[1]), rest);
+			}
+		}
+	}
+
+	// Merges the chunk holding position pos, if it is shorter than a quarter of
+	// the chunk capacity, with the chunk after it (or, for the last chunk, the
+	// one before it). The two become one chunk, or two of about half their
+	// total each if one would be over capacity, so that deleting can't leave
+	// the tree with more chunks than characters. A neighbour longer than the
+	// capacity is a mapped chunk that was never edited, and is left alone
+	// rather than copied onto the heap.
+	private void mergeUnderfull(int pos) {
+		if (pos < 0 || pos >= size()) {
+			return;
+		}
+		int[] start = new int[1];
+		Chunk c = chunkAt(pos, start);
+		if (c.length >= this.chunkCapacity / 4 || c.length == size()) {
+			return;
+		}
+		int from = start[0];
+		int to = from + c.length;
+		Chunk next = to < size() ? chunkAt(to, start) : Chunk.NULL_CHUNK;
+		Chunk previous = from > 0 ? chunkAt(from - 1, start) : Chunk.NULL_CHUNK;
+		if (next != Chunk.NULL_CHUNK && next.length <= this.chunkCapacity) {
+			to += next.length;
+		} else if (previous != Chunk.NULL_CHUNK && previous.length <= this.chunkCapacity) {
+			from -= previous.length;
+		} else {
+			return;
+		}
+		// the middle part is exactly the two chunks
+		Chunk[] parts = new Chunk[2];
+		split(this.root, to, parts);
+		Chunk rest = parts[1];
+		split(parts[0], from, parts);
+		char[] chars = new char[to - from];
+		fill(parts[1], chars, 0);
+		Chunk middle;
+		if (chars.length <= this.chunkCapacity) {
+			middle = newChunk(chars, chars.length);
+		} else {
+			int half = chars.length / 2;
+			Chunk[] halves = { newChunk(Arrays.copyOf(chars, half), half),
+					newChunk(Arrays.copyOfRange(chars, half, chars.length), chars.length - half) };
+			middle = link(halves, 0, 2);
+		}
+		this.root = concatenate(concatenate(parts[0], middle), rest);
+		if (chars.length < this.chunkCapacity / 4) {
+			mergeUnderfull(from);
+		}
+	}
+
+	// the chunk holding position pos; the position of its first character goes
+	// in start[0]
+	private Chunk chunkAt(int pos, int[] start) {
+		Chunk n = this.root;
+		start[0] = 0;
+		while (true) {
+			int rank = n.left.size;
+			if (pos < start[0] + rank) {
+				n = n.left;
+			} else if (pos < start[0] + rank + n.length) {
+				start[0] += rank;
+				return n;
+			} else {
+				start[0] += rank + n.length;
+				n = n.right;
+			}
+		}
+	}
+
+	// inserts ch at position pos of the subtree n; returns the new subtree root
+	private Chunk insert(Chunk n, int pos, char ch) {
+		if (n == Chunk.NULL_CHUNK) {
+			char[] chars = new char[Math.min(16, this.chunkCapacity)];
+			chars[0] = ch;
+			return newChunk(chars, 1);
+		}
+		this.pathLength++;
+		n = own(n);
+		int rank = n.left.size;
+		if (pos < rank) {
+			n.left = insert(n.left, pos, ch);
+		} else if (pos <= rank + n.length) {
+			insertIntoChunk(n, pos - rank, ch);
+		} else {
+			n.right = insert(n.right, pos - rank - n.length, ch);
+		}
+		return rebalance(n);
+	}
+
+	private void insertIntoChunk(Chunk n, int offset, char ch) {
+		n.materialize();
+		if (n.length == this.chunkCapacity) {
+			// full: move the upper half into a new chunk that becomes this
+			// chunk's inorder successor, then insert into whichever half
+			// offset falls in
+			int half = n.length / 2;
+			char[] upperChars = new char[this.chunkCapacity];
+			System.arraycopy(n.chars, half, upperChars, 0, n.length - half);
+			Chunk upper = newChunk(upperChars, n.length - half);
+			n.length = half;
+			n.countLineBreaks();
+			if (offset > half) {
+				insertIntoChunk(upper, offset - half, ch);
+			} else {
+				insertIntoChunk(n, offset, ch);
+			}
+			n.right = insertFirst(n.right, upper);
+			return;
+		}
+		if (n.length == n.chars.length) {
+			n.chars = Arrays.copyOf(n.chars, Math.min(this.chunkCapacity, 2 * n.length));
+		}
+		System.arraycopy(n.chars, offset, n.chars, offset + 1, n.length - offset);
+		n.chars[offset] = ch;
+		n.length++;
+		if (ch == '\n') {
+			n.lineBreaks++;
+		}
+		n.update();
+	}
+
+	// makes c the first chunk of the subtree n
+	private Chunk insertFirst(Chunk n, Chunk c) {
+		if (n == Chunk.NULL_CHUNK) {
+			c.left = Chunk.NULL_CHUNK;
+			c.right = Chunk.NULL_CHUNK;
+			c.update();
+			return c;
+		}
+		n = own(n);
+		n.left = insertFirst(n.left, c);
+		return rebalance(n);
+	}
+
+	// removes the character at position pos of the subtree n; chunks that
+	// become empty are removed from the tree
+	private Chunk remove(Chunk n, int pos) {
+		this.pathLength++;
+		n = own(n);
+		int rank = n.left.size;
+		if (pos < rank) {
+			n.left = remove(n.left, pos);
+		} else if (pos < rank + n.length) {
+			int offset = pos - rank;
+			n.materialize();
+			if (n.chars[offset] == '\n') {
+				n.lineBreaks--;
+			}
+			System.arraycopy(n.chars, offset + 1, n.chars, offset, n.length - offset - 1);
+			n.length--;
+			if (n.length == 0) {
+				return removeChunk(n);
+			}
+		} else {
+			n.right = remove(n.right, pos - rank - n.length);
+		}
+		return rebalance(n);
+	}
+
+	// unlinks the chunk n, replacing it by its successor if it has two children
+	private Chunk removeChunk(Chunk n) {
+		if (n.left == Chunk.NULL_CHUNK) {
+			return n.right;
+		} else if (n.right == Chunk.NULL_CHUNK) {
+			return n.left;
+		}
+		Chunk successor = n.right;
+		while (successor.left != Chunk.NULL_CHUNK) {
+			successor = successor.left;
+		}
+		successor = own(successor);
+		successor.right = removeFirst(n.right);
+		successor.left = n.left;
+		return rebalance(successor);
+	}
+
+	// unlinks the first chunk of the subtree n
+	private Chunk removeFirst(Chunk n) {
+		if (n.left == Chunk.NULL_CHUNK) {
+			return n.right;
+		}
+		n = own(n);
+		n.left = removeFirst(n.left);
+		return rebalance(n);
+	}
+
+	/**
+	 * Joins l, k and r (in that order) into one balanced tree, in time
+	 * proportional to the difference of the heights of l and r.
+	 */
+	private Chunk join(Chunk l, Chunk k, Chunk r) {
+		this.levels++;
+		if (l.height > r.height + 1) {
+			l = own(l);
+			l.right = join(l.right, k, r);
+			return rebalance(l);
+		} else if (r.height > l.height + 1) {
+			r = own(r);
+			r.left = join(l, k, r.left);
+			return rebalance(r);
+		}
+		k = own(k);
+		k.left = l;
+		k.right = r;
+		k.update();
+		return k;
+	}
+
+	// splits the subtree n into parts[0] (positions < pos) and parts[1]
+	private void split(Chunk n, int pos, Chunk[] parts) {
+		if (n == Chunk.NULL_CHUNK) {
+			parts[0] = Chunk.NULL_CHUNK;
+			parts[1] = Chunk.NULL_CHUNK;
+			return;
+		}
+		this.levels++;
+		Chunk left = n.left;
+		Chunk right = n.right;
+		int rank = left.size;
+		if (pos <= rank) {
+			split(left, pos, parts);
+			parts[1] = join(parts[1], n, right);
+		} else if (pos >= rank + n.length) {
+			split(right, pos - rank - n.length, parts);
+			parts[0] = join(left, n, parts[0]);
+		} else {
+			// pos falls inside this chunk, so cut it in two
+			int offset = pos - rank;
+			Chunk upper;
+			if (n.chars == null) {
+				upper = newChunk(n.source, n.start + offset, n.length - offset);
+			} else {
+				char[] upperChars = Arrays.copyOfRange(n.chars, offset, n.length);
+				upper = newChunk(upperChars, upperChars.length);
+			}
+			n = own(n);
+			n.length = offset;
+			n.countLineBreaks();
+			parts[0] = join(left, n, Chunk.NULL_CHUNK);
+			parts[1] = join(Chunk.NULL_CHUNK, upper, right);
+		}
+	}
+
+	private Chunk rebalance(Chunk n) {
+		n.update();
+		if (n.left.height - n.right.height > 1) {
+			if (n.left.right.height > n.left.left.height) {
+				n.left = rotateLeft(n.left);
+				this.doubleRotations++;
+			} else {
+				this.singleRotations++;
+			}
+			return rotateRight(n);
+		} else if (n.right.height - n.left.height > 1) {
+			if (n.right.left.height > n.right.right.height) {
+				n.right = rotateRight(n.right);
+				this.doubleRotations++;
+			} else {
+				this.singleRotations++;
+			}
+			return rotateLeft(n);
+		}
+		return n;
+	}
+
+	private Chunk rotateLeft(Chunk parent) {
+		parent = own(parent);
+		Chunk child = own(parent.right);
+		parent.right = child.left;
+		child.left = parent;
+		parent.update();
+		child.update();
+		return child;
+	}
+
+	private Chunk rotateRight(Chunk parent) {
+		parent = own(parent);
+		Chunk child = own(parent.left);
+		parent.left = child.right;
+		child.right = parent;
+		parent.update();
+		child.update();
+		return child;
+	}
+
+	// copies the characters of the subtree n into dst; returns the offset just
+	// past the last one
+	private int fill(Chunk n, char[] dst, int offset) {
+		if (n == Chunk.NULL_CHUNK) {
+			return offset;
+		}
+		offset = fill(n.left, dst, offset);
+		n.copyTo(0, dst, offset, n.length);
+		return fill(n.right, dst, offset + n.length);
+	}
+
+	// copies the characters at positions [from, to) of the subtree n into dst;
+	// returns the offset just past the last one
+	private int fill(Chunk n, char[] dst, int offset, int from, int to) {
+		if (n == Chunk.NULL_CHUNK || from >= to) {
+			return offset;
+		}
+		int rank = n.left.size;
+		if (from < rank) {
+			offset = fill(n.left, dst, offset, from, Math.min(to, rank));
+		}
+		int start = Math.max(from - rank, 0);
+		int end = Math.min(to - rank, n.length);
+		if (start < end) {
+			n.copyTo(start, dst, offset, end - start);
+			offset += end - start;
+		}
+		int past = rank + n.length;
+		if (to > past) {
+			offset = fill(n.right, dst, offset, Math.max(from - past, 0), to - past);
+		}
+		return offset;
+	}
+
+	/**
+	 * in-order iterator over the characters of the chunks
+	 */
+	public class ChunkIterator implements CharIterator {
+		private Chunk[] stack;
+		private int top;
+		private Chunk chunk;
+		private int offset;
+		private int treeSize;
+
+		public ChunkIterator() {
+			this.stack = new Chunk[Math.max(root.height + 1, 0)];
+			this.top = 0;
+			this.treeSize = size();
+			pushLeft(root);
+			advanceChunk();
+		}
+
+		public ChunkIterator(int pos) {
+			this.stack = new Chunk[Math.max(root.height + 1, 0)];
+			this.top = 0;
+			this.treeSize = size();
+			Chunk n = root;
+			while (n != Chunk.NULL_CHUNK) {
+				int rank = n.left.size;
+				if (pos < rank) {
+					this.stack[this.top++] = n;
+					n = n.left;
+				} else if (pos < rank + n.length) {
+					this.chunk = n;
+					this.offset = pos - rank;
+					pushLeft(n.right);
+					return;
+				} else {
+					pos -= rank + n.length;
+					n = n.right;
+				}
+			}
+			advanceChunk();
+		}
+
+		private void pushLeft(Chunk n) {
+			while (n != Chunk.NULL_CHUNK) {
+				this.stack[this.top++] = n;
+				n = n.left;
+			}
+		}
+
+		private void advanceChunk() {
+			if (this.top == 0) {
+				this.chunk = null;
+				return;
+			}
+			this.chunk = this.stack[--this.top];
+			this.offset = 0;
+			pushLeft(this.chunk.right);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.chunk != null;
+		}
+
+		@Override
+		public char nextChar() {
+			if (this.treeSize != size()) {
+				throw new ConcurrentModificationException();
+			}
+			if (this.chunk == null) {
+				throw new NoSuchElementException();
+			}
+			char result = this.chunk.charAt(this.offset++);
+			if (this.offset == this.chunk.length) {
+				advanceChunk();
+			}
+			return result;
+		}
+	}
+}
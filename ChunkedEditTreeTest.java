@@ -0,0 +1,410 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link editortrees.ChunkedEditTree}. The chunk capacities are kept
+ * small so that chunk splits, merges and rotations all happen on short strings.
+ */
+public class ChunkedEditTreeTest {
+
+	@Test
+	public void testEmpty() {
+		ChunkedEditTree t = new ChunkedEditTree();
+		assertEquals("", t.toString());
+		assertEquals(0, t.size());
+		assertEquals(-1, t.height());
+		assertEquals("[]", t.toDebugString());
+	}
+
+	@Test
+	public void testAppendFillsChunks() {
+		ChunkedEditTree t = new ChunkedEditTree(4);
+		for (char c = 'a'; c <= 'j'; c++) {
+			t.add(c);
+		}
+		assertEquals("abcdefghij", t.toString());
+		assertEquals(10, t.size());
+		// a full chunk is halved before it grows past its capacity
+		assertEquals("[cd2\\, ab0=, ef0\\, ghij0=]", t.toDebugString());
+	}
+
+	@Test
+	public void testConstructorWithString() {
+		ChunkedEditTree t = new ChunkedEditTree("abcdefghijkl", 4);
+		assertEquals("abcdefghijkl", t.toString());
+		assertEquals("[efgh4=, abcd0=, ijkl0=]", t.toDebugString());
+		assertEquals(0, t.totalRotationCount());
+		for (int i = 0; i < 12; i++) {
+			assertEquals((char) ('a' + i), t.get(i));
+		}
+	}
+
+	@Test
+	public void testGetRange() {
+		ChunkedEditTree t = new ChunkedEditTree("abcdefghijklmnopqrstuvwxyz", 3);
+		assertEquals("", t.get(26, 0));
+		assertEquals("defghijk", t.get(3, 8));
+		assertEquals("abcdefghijklmnopqrstuvwxyz", t.get(0, 26));
+		try {
+			t.get(20, 7);
+			fail("Did not throw IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+			// success
+		}
+	}
+
+	@Test
+	public void testThrowsIndexExceptions() {
+		ChunkedEditTree t = new ChunkedEditTree("abc", 2);
+		try {
+			t.add('x', 4);
+			fail("Did not throw IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+			// success
+		}
+		try {
+			t.get(3);
+			fail("Did not throw IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+			// success
+		}
+		try {
+			t.delete(-1);
+			fail("Did not throw IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+			// success
+		}
+	}
+
+	@Test
+	public void testSplitAndConcatenate() {
+		String str = "the quick brown fox jumps over the lazy dog";
+		ChunkedEditTree original = new ChunkedEditTree(str, 4);
+		for (int i = 0; i < str.length(); i++) {
+			ChunkedEditTree t1 = new ChunkedEditTree((ChunkedEditTree) original);
+			ChunkedEditTree t2 = t1.split(i);
+			assertEquals(str.substring(0, i), t1.toString());
+			assertEquals(str.substring(i), t2.toString());
+			assertTrue(t1.height() <= maxHeight(t1.size()));
+			assertTrue(t2.height() <= maxHeight(t2.size()));
+			t1.concatenate(t2);
+			assertEquals(str, t1.toString());
+			assertEquals("", t2.toString());
+			assertTrue(t1.height() <= maxHeight(t1.size()));
+		}
+	}
+
+	@Test
+	public void testConcatenateSelf() {
+		ChunkedEditTree t = new ChunkedEditTree("abc");
+		try {
+			t.concatenate(t);
+			fail("Did not throw IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// success
+		}
+	}
+
+	@Test
+	public void testDeleteRange() {
+		ChunkedEditTree t = new ChunkedEditTree("abcdefghijklmnopqrstuvwxyz", 5);
+		ChunkedEditTree deleted = t.delete(3, 10);
+		assertEquals("defghijklm", deleted.toString());
+		assertEquals("abcnopqrstuvwxyz", t.toString());
+	}
+
+	@Test
+	public void testFind() {
+		ChunkedEditTree t = new ChunkedEditTree("abracadabra", 3);
+		assertEquals(0, t.find("abra"));
+		assertEquals(7, t.find("abra", 1));
+		assertEquals(-1, t.find("cab"));
+		assertEquals(-1, new ChunkedEditTree().find("a"));
+	}
+
+	@Test
+	public void testRandomAddDelete() {
+		Random rand = new Random(230);
+		for (int capacity = 2; capacity <= 16; capacity *= 2) {
+			ChunkedEditTree t = new ChunkedEditTree(capacity);
+			StringBuilder expected = new StringBuilder();
+			for (int i = 0; i < 5000; i++) {
+				if (expected.length() > 0 && rand.nextInt(3) == 0) {
+					int pos = rand.nextInt(expected.length());
+					assertEquals(expected.charAt(pos), t.delete(pos));
+					expected.deleteCharAt(pos);
+				} else {
+					int pos = rand.nextInt(expected.length() + 1);
+					char c = (char) ('a' + rand.nextInt(26));
+					t.add(c, pos);
+					expected.insert(pos, c);
+				}
+				assertEquals(expected.length(), t.size());
+			}
+			assertEquals(expected.toString(), t.toString());
+			assertTrue(t.height() <= maxHeight(t.size()));
+			for (int i = 0; i < expected.length(); i++) {
+				assertEquals(expected.charAt(i), t.get(i));
+			}
+		}
+	}
+
+	@Test
+	public void testDeletesMergeUnderfullChunks() {
+		Random rand = new Random(230);
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 1600; i++) {
+			expected.append((char) ('a' + i % 26));
+		}
+		ChunkedEditTree t = new ChunkedEditTree(expected.toString(), 16);
+		while (expected.length() > 64) {
+			int pos = rand.nextInt(expected.length());
+			assertEquals(expected.charAt(pos), t.delete(pos));
+			expected.deleteCharAt(pos);
+		}
+		assertEquals(expected.toString(), t.toString());
+		// every chunk holds at least a quarter of the capacity, so there are at
+		// most 16 of them
+		assertTrue(t.height() <= maxHeight(16));
+		ChunkedEditTree tail = t.split(1);
+		assertEquals(expected.substring(1), tail.toString());
+		t.concatenate(tail);
+		assertEquals(expected.toString(), t.toString());
+		assertTrue(t.height() <= maxHeight(16));
+	}
+
+	@Test
+	public void testSnapshot() {
+		ChunkedEditTree t = new ChunkedEditTree("the quick brown fox", 4);
+		ChunkedEditTree s = t.snapshot();
+		t.delete(4, 6);
+		t.add('!');
+		s.add("lazy ", 4);
+		assertEquals("the brown fox!", t.toString());
+		assertEquals("the lazy quick brown fox", s.toString());
+		ChunkedEditTree s2 = s.snapshot();
+		s.split(8);
+		assertEquals("the lazy", s.toString());
+		assertEquals("the lazy quick brown fox", s2.toString());
+		assertEquals("the brown fox!", t.toString());
+	}
+
+	@Test
+	public void testRandomEditsWithSnapshots() {
+		Random rand = new Random(230);
+		ChunkedEditTree t = new ChunkedEditTree(8);
+		StringBuilder expected = new StringBuilder();
+		List<ChunkedEditTree> snapshots = new ArrayList<ChunkedEditTree>();
+		List<String> contents = new ArrayList<String>();
+		for (int i = 0; i < 5000; i++) {
+			int op = rand.nextInt(8);
+			if (op < 4) {
+				int pos = rand.nextInt(expected.length() + 1);
+				t.add((char) ('a' + i % 26), pos);
+				expected.insert(pos, (char) ('a' + i % 26));
+			} else if (op < 6 && expected.length() > 0) {
+				int pos = rand.nextInt(expected.length());
+				t.delete(pos);
+				expected.deleteCharAt(pos);
+			} else if (op == 6 && expected.length() > 0) {
+				// an edit to a split-off half that a snapshot shares
+				int pos = rand.nextInt(expected.length());
+				ChunkedEditTree right = t.split(pos);
+				snapshots.add(right.snapshot());
+				contents.add(right.toString());
+				right.add("!?", 0);
+				t.concatenate(right);
+				expected.insert(pos, "!?");
+			} else if (rand.nextInt(10) == 0) {
+				snapshots.add(t.snapshot());
+				contents.add(expected.toString());
+			}
+			assertEquals(expected.length(), t.size());
+		}
+		assertEquals(expected.toString(), t.toString());
+		assertTrue(t.height() <= maxHeight(t.size()));
+		for (int i = 0; i < snapshots.size(); i++) {
+			assertEquals(contents.get(i), snapshots.get(i).toString());
+		}
+	}
+
+	@Test
+	public void testAddManyInc() {
+		ChunkedEditTree t = new ChunkedEditTree();
+		for (int k = 0; k < 1000000; k++) {
+			t.add((char) k);
+		}
+		assertEquals(1000000, t.size());
+		for (int k = 0; k < 1000000; k += 10) {
+			assertEquals((char) k, t.get(k));
+		}
+	}
+
+	@Test
+	public void testAddString() {
+		ChunkedEditTree t = new ChunkedEditTree(4);
+		t.add("fox", 0);
+		t.add("the ", 0);
+		t.add("quick brown ", 4);
+		t.add("", 4);
+		t.add(" jumps over the lazy dog", t.size());
+		assertEquals("the quick brown fox jumps over the lazy dog", t.toString());
+		assertEquals(43, t.size());
+		assertTrue(t.height() <= maxHeight(t.size()));
+	}
+
+	private static int maxHeight(int nodes) {
+		int height = -1;
+		int maxNodes = 1;
+		int prevMaxNodes = 0;
+
+		while (nodes >= maxNodes) {
+			int temp = prevMaxNodes;
+			prevMaxNodes = maxNodes;
+			maxNodes = temp + maxNodes + 1;
+			height++;
+		}
+
+		return height;
+	}
+
+	@Test
+	public void testMappedFile() throws IOException {
+		Random rand = new Random(230);
+		StringBuilder sb = new StringBuilder();
+		int length = 3 * ChunkedEditTree.MAPPED_CHUNK + 1234;
+		for (int i = 0; i < length; i++) {
+			sb.append(rand.nextInt(30) == 0 ? '\n' : (char) ('a' + rand.nextInt(26)));
+		}
+		String text = sb.toString();
+		Charset[] charsets = { StandardCharsets.ISO_8859_1, StandardCharsets.UTF_16BE, StandardCharsets.UTF_16LE };
+		for (Charset charset : charsets) {
+			Path file = Files.createTempFile("mapped", ".txt");
+			try {
+				Files.write(file, text.getBytes(charset));
+				ChunkedEditTree t = ChunkedEditTree.map(file, charset);
+				assertEquals(text, t.toString());
+				assertEquals(text.split("\n", -1).length, t.lineCount());
+				assertEquals(text.substring(70000, 70100), t.get(70000, 100));
+
+				StringBuilder expected = new StringBuilder(text);
+				for (int i = 0; i < 2000; i++) {
+					int pos = rand.nextInt(expected.length());
+					if (rand.nextBoolean()) {
+						t.add('!', pos);
+						expected.insert(pos, '!');
+					} else {
+						assertEquals(expected.charAt(pos), t.delete(pos));
+						expected.deleteCharAt(pos);
+					}
+				}
+				int pos = rand.nextInt(expected.length() - 10);
+				t.add("inserted", pos);
+				expected.insert(pos, "inserted");
+				ChunkedEditTree tail = t.split(expected.length() / 3);
+				t.concatenate(tail);
+				assertEquals(expected.toString(), t.toString());
+				assertEquals(expected.toString(), new ChunkedEditTree(t).toString());
+				assertEquals(expected.toString().split("\n", -1).length, t.lineCount());
+			} finally {
+				Files.delete(file);
+			}
+		}
+		try {
+			ChunkedEditTree.map(null, StandardCharsets.UTF_8);
+			fail("Did not throw IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// success
+		}
+	}
+
+	@Test
+	public void testMappedChunksCountLineBreaksLazily() {
+		int[] reads = new int[1];
+		String text = "one\ntwo\nthree\n\nfour";
+		CharSequence source = new CharSequence() {
+			@Override
+			public int length() {
+				return text.length();
+			}
+
+			@Override
+			public char charAt(int index) {
+				reads[0]++;
+				return text.charAt(index);
+			}
+
+			@Override
+			public CharSequence subSequence(int start, int end) {
+				return text.subSequence(start, end);
+			}
+		};
+		Chunk root = new Chunk(source, 8, 6);
+		root.left = new Chunk(source, 0, 8);
+		root.right = new Chunk(source, 14, 5);
+		root.update();
+		assertEquals(0, reads[0]);
+		assertEquals(-1, root.newlines);
+		// only the chunk asked about is read
+		assertEquals(2, root.left.newlines());
+		assertEquals(8, reads[0]);
+		assertEquals(-1, root.newlines);
+		assertEquals(4, root.newlines());
+		assertEquals(text.length(), reads[0]);
+	}
+
+	@Test
+	public void testMappedFileLines() throws IOException {
+		Random rand = new Random(230);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 2 * ChunkedEditTree.MAPPED_CHUNK + 99; i++) {
+			sb.append(rand.nextInt(40) == 0 ? '\n' : (char) ('a' + rand.nextInt(26)));
+		}
+		String text = sb.toString();
+		String[] lines = text.split("\n", -1);
+		Path file = Files.createTempFile("mapped", ".txt");
+		try {
+			Files.write(file, text.getBytes(StandardCharsets.ISO_8859_1));
+			ChunkedEditTree t = ChunkedEditTree.map(file, StandardCharsets.ISO_8859_1);
+			assertEquals(lines[0], t.getLine(0));
+			for (int i = 0; i < 100; i++) {
+				int pos = rand.nextInt(text.length() + 1);
+				assertEquals(text.substring(0, pos).split("\n", -1).length - 1, t.lineOf(pos));
+			}
+			int offset = 0;
+			for (int line = 0; line < lines.length; line++) {
+				assertEquals(offset, t.offsetOfLine(line));
+				offset += lines[line].length() + 1;
+			}
+			assertEquals(lines[lines.length - 1], t.getLine(lines.length - 1));
+			assertEquals(lines.length, t.lineCount());
+			try {
+				t.offsetOfLine(lines.length);
+				fail("Did not throw IndexOutOfBoundsException");
+			} catch (IndexOutOfBoundsException e) {
+				// success
+			}
+			t.add("\n\n", 70000);
+			t.delete(100);
+			StringBuilder expected = new StringBuilder(text).insert(70000, "\n\n").deleteCharAt(100);
+			assertEquals(expected.toString().split("\n", -1).length, t.lineCount());
+			assertEquals(expected.substring(0, 70001).split("\n", -1).length - 1, t.lineOf(70001));
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package editortrees;
+
+import java.util.function.Consumer;
+
+// An EditTree that many threads can read while one thread edits it. Edits go
+// to a private tree; after each one, a snapshot of that tree is published
+// through a volatile field. Snapshots share every node with the tree they were
+// taken from, and those nodes are never changed again (the next edit copies
+// its path instead), so a published version is immutable. Readers pick up the
+// current version with a single volatile read and never lock, wait or see a
+// ConcurrentModificationException; each read method sees one consistent
+// version, and current() hands out a version to make several reads against.
+//
+// Edits are serialized on this object, so more than one writer is safe, but
+// the design assumes one: a writer never waits for readers, only for another
+// writer.
+
+public class ConcurrentEditTree {
+
+	private final EditTree tree; // only changed while holding this object's lock
+	private volatile EditTree published;
+
+	/**
+	 * Construct an empty tree
+	 */
+	public ConcurrentEditTree() {
+		this(new EditTree());
+	}
+
+	/**
+	 * Create a tree whose toString is s, in O(N) time.
+	 *
+	 * @param s
+	 */
+	public ConcurrentEditTree(CharSequence s) {
+		this(new EditTree(s));
+	}
+
+	// wraps tree, which nothing else may hold on to
+	private ConcurrentEditTree(EditTree tree) {
+		this.tree = tree;
+		this.published = tree.snapshot();
+	}
+
+	/**
+	 * @return the most recently published version. It never changes, and may be
+	 *         read from any thread for as long as it is needed. It must not be
+	 *         edited; use snapshot() for a version of one's own to edit.
+	 */
+	public EditTree current() {
+		return this.published;
+	}
+
+	/**
+	 * @return a tree holding the current text that the caller may edit freely,
+	 *         in O(1) time. Its edits are not seen by this tree.
+	 */
+	public EditTree snapshot() {
+		return this.published.snapshot();
+	}
+
+	/**
+	 * Applies edits to the tree and publishes the result once, so readers see
+	 * either none of them or all of them. The edits must only use the tree they
+	 * are given, and only while they run.
+	 *
+	 * @param edits
+	 */
+	public synchronized void update(Consumer<EditTree> edits) {
+		try {
+			edits.accept(this.tree);
+		} finally {
+			// even a failed batch may have changed the tree part way through
+			this.published = this.tree.snapshot();
+		}
+	}
+
+	/**
+	 * @param ch character to add to the end of this tree
+	 */
+	public synchronized void add(char ch) {
+		this.tree.add(ch);
+		this.published = this.tree.snapshot();
+	}
+
+	/**
+	 * @param ch  character to add
+	 * @param pos character added in this inorder position
+	 * @throws IndexOutOfBoundsException if pos is negative or too large for this
+	 *                                   tree
+	 */
+	public synchronized void add(char ch, int pos) throws IndexOutOfBoundsException {
+		this.tree.add(ch, pos);
+		this.published = this.tree.snapshot();
+	}
+
+	/**
+	 * @param s   characters to add
+	 * @param pos position of the first added character
+	 * @throws IndexOutOfBoundsException if pos is negative or too large for this
+	 *                                   tree
+	 */
+	public synchronized void add(CharSequence s, int pos) throws IndexOutOfBoundsException {
+		this.tree.add(s, pos);
+		this.published = this.tree.snapshot();
+	}
+
+	/**
+	 * @param pos position of character to delete from this tree
+	 * @return the character that is deleted
+	 * @throws IndexOutOfBoundsException
+	 */
+	public synchronized char delete(int pos) throws IndexOutOfBoundsException {
+		char result = this.tree.delete(pos);
+		this.published = this.tree.snapshot();
+		return result;
+	}
+
+	/**
+	 * @param start  position of beginning of string to delete
+	 * @param length length of string to delete
+	 * @return an EditTree containing the deleted string
+	 * @throws IndexOutOfBoundsException unless both start and start+length-1 are
+	 *                                   in range for this tree.
+	 */
+	public synchronized EditTree delete(int start, int length) throws IndexOutOfBoundsException {
+		EditTree result = this.tree.delete(start, length);
+		this.published = this.tree.snapshot();
+		return result;
+	}
+
+	/**
+	 * @return the number of characters in the current version
+	 */
+	public int size() {
+		return this.published.size();
+	}
+
+	/**
+	 * @param pos position in the tree
+	 * @return the character at that position in the current version
+	 * @throws IndexOutOfBoundsException
+	 */
+	public char get(int pos) throws IndexOutOfBoundsException {
+		return this.published.get(pos);
+	}
+
+	/**
+	 * @param pos    location of the beginning of the string to retrieve
+	 * @param length length of the string to retrieve
+	 * @return string of length that starts in position pos of the current
+	 *         version
+	 * @throws IndexOutOfBoundsException unless both pos and pos+length-1 are
+	 *                                   legitimate indexes within the version
+	 */
+	public String get(int pos, int length) throws IndexOutOfBoundsException {
+		return this.published.get(pos, length);
+	}
+
+	/**
+	 * Copies length characters of the current version starting at position pos
+	 * into dst.
+	 *
+	 * @param pos       location of the first character to copy
+	 * @param length    number of characters to copy
+	 * @param dst       the array to fill
+	 * @param dstOffset where in dst the first character goes
+	 * @throws IndexOutOfBoundsException if the range is not within the version or
+	 *                                   does not fit in dst
+	 */
+	public void get(int pos, int length, char[] dst, int dstOffset) throws IndexOutOfBoundsException {
+		this.published.get(pos, length, dst, dstOffset);
+	}
+
+	/**
+	 * @param s the string to look for
+	 * @return the position in the current version of the first occurrence of s;
+	 *         -1 if s does not occur
+	 */
+	public int find(String s) {
+		return this.published.find(s);
+	}
+
+	/**
+	 * @param s   the string to search for
+	 * @param pos the position in the tree to begin the search
+	 * @return the position in the current version of the first occurrence of s
+	 *         that does not occur before position pos; -1 if s does not occur
+	 */
+	public int find(String s, int pos) {
+		return this.published.find(s, pos);
+	}
+
+	/**
+	 * @return an iterator over the current version, which edits made after this
+	 *         call do not affect
+	 */
+	public CharIterator charIterator() {
+		return this.published.charIterator();
+	}
+
+	/**
+	 * @param pos position of the first character returned
+	 * @return an iterator over the current version from pos on, which edits
+	 *         made after this call do not affect
+	 * @throws IndexOutOfBoundsException if pos is negative or greater than size()
+	 */
+	public CharIterator charIterator(int pos) throws IndexOutOfBoundsException {
+		return this.published.charIterator(pos);
+	}
+
+	/**
+	 * @return the text of the current version
+	 */
+	@Override
+	public String toString() {
+		return this.published.toString();
+	}
+}
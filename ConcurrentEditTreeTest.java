@@ -0,0 +1,122 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link editortrees.ConcurrentEditTree}.
+ */
+public class ConcurrentEditTreeTest {
+
+	@Test
+	public void testEdits() {
+		ConcurrentEditTree t = new ConcurrentEditTree("the fox");
+		t.add(" quick", 3);
+		t.add('!');
+		t.add('?', 0);
+		assertEquals('?', t.delete(0));
+		assertEquals("the quick fox!", t.toString());
+		assertEquals(14, t.size());
+		assertEquals("quick", t.get(4, 5));
+		assertEquals('f', t.get(10));
+		assertEquals(10, t.find("fox"));
+		assertEquals("quick ", t.delete(4, 6).toString());
+		assertEquals("the fox!", t.toString());
+		t.update(tree -> {
+			tree.add("lazy ", 4);
+			tree.delete(tree.size() - 1);
+		});
+		assertEquals("the lazy fox", t.toString());
+	}
+
+	@Test
+	public void testVersionsDoNotChange() {
+		ConcurrentEditTree t = new ConcurrentEditTree("abc");
+		EditTree before = t.current();
+		CharIterator iter = t.charIterator();
+		t.add('d');
+		t.delete(0);
+		assertEquals("abc", before.toString());
+		assertEquals('a', iter.nextChar());
+		assertEquals('b', iter.nextChar());
+		assertEquals('c', iter.nextChar());
+		assertEquals("bcd", t.toString());
+
+		EditTree mine = t.snapshot();
+		mine.add('x', 0);
+		assertEquals("xbcd", mine.toString());
+		assertEquals("bcd", t.toString());
+	}
+
+	@Test
+	public void testFailedUpdateIsPublished() {
+		ConcurrentEditTree t = new ConcurrentEditTree("abc");
+		try {
+			t.update(tree -> {
+				tree.add('d');
+				tree.delete(10);
+			});
+			fail("Did not throw IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+			// success
+		}
+		assertEquals("abcd", t.toString());
+	}
+
+	@Test
+	public void testReadersSeeWholeUpdates() throws InterruptedException {
+		// every published version is some number of copies of "0123456789"
+		ConcurrentEditTree t = new ConcurrentEditTree("0123456789");
+		AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		CountDownLatch done = new CountDownLatch(1);
+		Thread[] readers = new Thread[4];
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new Thread(() -> {
+				try {
+					while (done.getCount() > 0) {
+						EditTree version = t.current();
+						int size = version.size();
+						assertEquals(0, size % 10);
+						CharIterator iter = version.charIterator();
+						for (int pos = 0; pos < size; pos++) {
+							assertEquals('0' + pos % 10, iter.nextChar());
+						}
+						assertTrue(!iter.hasNext());
+					}
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			});
+			readers[i].start();
+		}
+		try {
+			for (int i = 0; i < 2000; i++) {
+				int at = 10 * (i % (t.size() / 10 + 1));
+				if (i % 3 == 2 && t.size() > 10) {
+					// delete(start, length) needs a character after the range
+					t.delete(Math.min(at, t.size() - 20), 10);
+				} else {
+					t.update(tree -> {
+						for (char c = '9'; c >= '0'; c--) {
+							tree.add(c, at);
+						}
+					});
+				}
+			}
+		} finally {
+			done.countDown();
+		}
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+	}
+}
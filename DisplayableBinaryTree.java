@@ -2,14 +2,12 @@ package editortrees;
 
 
 import java.awt.Color;
-import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
-import java.awt.TextArea;
 import java.awt.event.InputEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
@@ -75,6 +73,12 @@ public class DisplayableBinaryTree extends JComponent {
 	private double nodeY;
 	private double angle;
 	private boolean goingCrazy;
+	private volatile EditTree shown; // a snapshot of the tree as of its last change
+	private EditTree measured; // the snapshot treeSize and treeHeight were measured on
+	private int treeSize;
+	private int treeHeight;
+	private Font font; // the node font, fitted to circles of fontRadius
+	private double fontRadius;
 
 	/**
 	 * Constructs a new displayable binary tree, set to default to the given window size for display..
@@ -92,32 +96,49 @@ public class DisplayableBinaryTree extends JComponent {
 		this.tree = tree;
 		// makes the size of the nodes oscillate
 		this.goingCrazy = Math.random() < 0.05;
+		this.shown = tree.snapshot();
 		this.show(visable);
-		Runnable repainter = new Runnable() {
+		// clicking the tree closes the window
+		this.addMouseListener(new MouseAdapter() {
 			@Override
-			public void run() {
-				try {
-					while (true) {
-						Thread.sleep(10);
-						repaint();
-					}
-				} catch (InterruptedException exception) {
-					// Reports interrupt
+			public void mouseClicked(MouseEvent evt) {
+				if ((evt.getModifiers() & InputEvent.BUTTON1_MASK) != 0) {
+					frame.dispose();
 				}
 			}
-		};
-		new Thread(repainter).start();
+		});
+	}
+
+	/**
+	 * Called by the tree on the thread that edits it, once each edit is done.
+	 * It takes a snapshot there, which is all that painting reads, so the
+	 * event thread never sees an edit half done. Nothing is repainted
+	 * otherwise, apart from what Swing repaints itself (on a resize, say), so
+	 * an open window costs nothing while the tree sits still. While it is
+	 * visible, each edit copies the nodes on its path rather than change the
+	 * snapshot's; while it is hidden or closed, no snapshot is taken, and
+	 * edits cost what they would without a window.
+	 */
+	void treeChanged() {
+		if (this.frame == null || !this.frame.isVisible()) {
+			return;
+		}
+		this.shown = this.tree.snapshot();
+		repaint();
 	}
 
 	public void show(boolean visable) {
 		if (this.frame != null) {
+			// edits made while the window was hidden were not snapshotted
+			this.shown = this.tree.snapshot();
 			this.frame.toFront();
+			repaint();
 			return;
 		}
 		this.frame = new JFrame();
 		this.frame.setFocusable(true);
 		this.frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-		this.frame.setMinimumSize(new Dimension(this.tree.slowSize() * 20 + 18, this.tree.slowHeight() * 20 + 45));
+		this.frame.setMinimumSize(new Dimension(this.shown.slowSize() * 20 + 18, this.shown.slowHeight() * 20 + 45));
 		this.frame.setSize(new Dimension(this.width, this.height));
 		// set the background color to a stormy gray
 		this.frame.getContentPane().setBackground(BACKGROUND_COLOR);
@@ -153,22 +174,31 @@ public class DisplayableBinaryTree extends JComponent {
 		this.width = this.frame.getWidth() - 18; // adjust for margins
 		this.height = this.frame.getHeight() - 45; // adjust for the margins
 
-		int treeHeight = this.tree.slowHeight();
-		int treeSize = this.tree.slowSize();
+		EditTree shown = this.shown;
+		if (shown != this.measured) {
+			// the O(N) measurements are only redone once the tree has changed
+			this.measured = shown;
+			this.treeHeight = shown.slowHeight();
+			this.treeSize = shown.slowSize();
+			Dimension minSize = new Dimension((int) (this.treeSize * 20 + 18), (int) (this.treeHeight * 30 + 45));
+			if (minSize.getHeight() > 1080) {
+				minSize.setSize(minSize.getWidth(), 1080);
+			}
+			if (minSize.getWidth() > 1920) {
+				minSize.setSize(1920, minSize.getHeight());
+			}
+			if (this.treeSize >= 1) {
+				this.frame.setMinimumSize(minSize);
+			}
+		}
+		int treeHeight = this.treeHeight;
+		int treeSize = this.treeSize;
 		if (treeSize < 1) {
 			return;
 		}
 
 		this.xDistance = this.width / ((double) (treeSize)); // make the constant
 		this.circleRadius = this.xDistance / 2.0; // sets the circle diameter to the delta x distance
-		Dimension minSize = new Dimension((int) (treeSize * 20 + 18), (int) (treeHeight * 30 + 45));
-		if (minSize.getHeight() > 1080) {
-			minSize.setSize(minSize.getWidth(), 1080);
-		}
-		if (minSize.getWidth() > 1920) {
-			minSize.setSize(1920, minSize.getHeight());
-		}
-		this.frame.setMinimumSize(minSize);
 		// System.out.println(treeSize);
 		// System.out.println(treeHeight);
 		this.circleRadius *= 1.25;
@@ -185,23 +215,12 @@ public class DisplayableBinaryTree extends JComponent {
 		this.nodeX = this.circleRadius;
 		this.nodeY = this.circleRadius;
 
-		int size = 0;
-		// loops through font sizes, to get the right font size
-		while (true) {
-			// System.out.println(size);
-			FontMetrics metric = g2.getFontMetrics(new Font(FONT_NAME, Font.CENTER_BASELINE, size));
-			int height = metric.getHeight();
-			int width = metric.getMaxAdvance();
-			// times 1.5 works out nice
-			double multiplyer = 1.5;
-			// if the diagonal is 1.5 times the radius stop making it bigger
-			if (Math.sqrt(height * height + width * width) > multiplyer * this.circleRadius) {
-				g2.setFont(new Font(FONT_NAME, Font.PLAIN, --size));
-				// System.out.println(g2.getFont().getSize());
-				break; // done
-			}
-			size++;
+		// the font only has to be fitted again when the circles change size
+		if (this.font == null || this.fontRadius != this.circleRadius) {
+			this.font = this.fitFont(g2, this.circleRadius);
+			this.fontRadius = this.circleRadius;
 		}
+		g2.setFont(this.font);
 		// RAISE THE BAR VVVVV
 		g2.setColor(Color.blue); // blue looks so much better
 		g2.fill(new Rectangle2D.Double(this.width - 5, 50, 10, 5));
@@ -210,21 +229,35 @@ public class DisplayableBinaryTree extends JComponent {
 		g2.fill(new Rectangle2D.Double(this.width - 20, 80, 40, 5));
 		g2.fill(new Rectangle2D.Double(this.width - 25, 90, 50, 5));
 		// // RAISE THE BAR ^^^^^
-		DisplayableNodeWrapper current = this.tree.getRoot().getDisplayableNodePart();
+		DisplayableNodeWrapper current = shown.getRoot().getDisplayableNodePart();
 		// CURRENT.POINT = THE CENTER POINT, NOT THE UPPER LEFT CORNER
 		this.paintHelper(g2, current, this.nodeY);
 		this.lineHelper(g2, current);
 		// System.out.println("DONE");
+	}
 
-		Component textArea = new TextArea();
-		textArea.addMouseListener(new MouseAdapter() {
-			public void mouseClicked(MouseEvent evt) {
-				if ((evt.getModifiers() & InputEvent.BUTTON1_MASK) != 0) {
-					frame.dispose();
-				}
+	/**
+	 * finds the largest font whose characters fit in circles of the given radius
+	 * 
+	 * @param g2
+	 * @param circleRadius
+	 * @return the font
+	 */
+	private Font fitFont(Graphics2D g2, double circleRadius) {
+		int size = 0;
+		// loops through font sizes, to get the right font size
+		while (true) {
+			FontMetrics metric = g2.getFontMetrics(new Font(FONT_NAME, Font.CENTER_BASELINE, size));
+			int height = metric.getHeight();
+			int width = metric.getMaxAdvance();
+			// times 1.5 works out nice
+			double multiplyer = 1.5;
+			// if the diagonal is 1.5 times the radius stop making it bigger
+			if (Math.sqrt(height * height + width * width) > multiplyer * circleRadius) {
+				return new Font(FONT_NAME, Font.PLAIN, --size);
 			}
-		});
-		this.frame.add(textArea);
+			size++;
+		}
 	}
 
 	/**
@@ -0,0 +1,220 @@
+package editortrees;
+
+import java.nio.BufferOverflowException;
+import java.nio.CharBuffer;
+import java.util.stream.IntStream;
+
+// The text operations that EditTree and ChunkedEditTree have in common, so
+// code that only reads and edits text can take either one. T is the
+// implementing class itself: split and delete(start, length) hand back a tree
+// of the same kind, and concatenate only takes one, since each kind of tree
+// can only be joined to its own.
+//
+// What depends on how the text is stored (the height and rotation counts of
+// the tree, its debug string, and the classic tree's Nodes) stays on the
+// classes themselves.
+
+public interface EditBuffer<T extends EditBuffer<T>> {
+
+	/**
+	 * @return the number of characters in this tree, in O(1)
+	 */
+	int size();
+
+	/**
+	 * @param ch character to add to the end of this tree
+	 */
+	void add(char ch);
+
+	/**
+	 * @param ch  character to add
+	 * @param pos character added in this inorder position
+	 * @throws IndexOutOfBoundsException if pos is negative or too large for this
+	 *                                   tree
+	 */
+	void add(char ch, int pos) throws IndexOutOfBoundsException;
+
+	/**
+	 * Adds all of s at position pos, in O(k + log N) for k characters.
+	 *
+	 * @param s   characters to add
+	 * @param pos position of the first added character
+	 * @throws IndexOutOfBoundsException if pos is negative or too large for this
+	 *                                   tree
+	 */
+	void add(CharSequence s, int pos) throws IndexOutOfBoundsException;
+
+	/**
+	 * @param pos position in the tree
+	 * @return the character at that position
+	 * @throws IndexOutOfBoundsException
+	 */
+	char get(int pos) throws IndexOutOfBoundsException;
+
+	/**
+	 * @param pos    location of the beginning of the string to retrieve
+	 * @param length length of the string to retrieve
+	 * @return string of length that starts in position pos
+	 * @throws IndexOutOfBoundsException unless [pos, pos + length) is a range
+	 *                                   of this tree
+	 */
+	String get(int pos, int length) throws IndexOutOfBoundsException;
+
+	/**
+	 * Copies length characters starting at position pos into dst, without
+	 * allocating.
+	 *
+	 * @param pos       location of the first character to copy
+	 * @param length    number of characters to copy
+	 * @param dst       the array to fill
+	 * @param dstOffset where in dst the first character goes
+	 * @throws IndexOutOfBoundsException if the range is not within this tree or
+	 *                                   does not fit in dst
+	 */
+	void get(int pos, int length, char[] dst, int dstOffset) throws IndexOutOfBoundsException;
+
+	/**
+	 * Puts length characters starting at position pos into dst, advancing its
+	 * position.
+	 *
+	 * @param pos    location of the first character to copy
+	 * @param length number of characters to copy
+	 * @param dst    the buffer to fill
+	 * @throws IndexOutOfBoundsException if the range is not within this tree
+	 * @throws BufferOverflowException   if dst has fewer than length characters
+	 *                                   remaining
+	 */
+	void get(int pos, int length, CharBuffer dst) throws IndexOutOfBoundsException;
+
+	/**
+	 * @param pos position of the character to delete
+	 * @return the character that is deleted
+	 * @throws IndexOutOfBoundsException
+	 */
+	char delete(int pos) throws IndexOutOfBoundsException;
+
+	/**
+	 * @param start  position of beginning of string to delete
+	 * @param length length of string to delete
+	 * @return a tree containing the deleted string
+	 * @throws IndexOutOfBoundsException unless both start and start+length-1 are in
+	 *                                   range for this tree, and there is a
+	 *                                   character after them
+	 */
+	T delete(int start, int length) throws IndexOutOfBoundsException;
+
+	/**
+	 * @param pos where to split this tree
+	 * @return a new tree containing all of the characters of this tree from
+	 *         position pos on. They are removed from this tree.
+	 * @throws IndexOutOfBoundsException
+	 */
+	T split(int pos) throws IndexOutOfBoundsException;
+
+	/**
+	 * Appends the contents of other to this tree and empties other, in time
+	 * proportional to the log of the size of the larger tree.
+	 *
+	 * @param other
+	 * @throws IllegalArgumentException if this == other
+	 */
+	void concatenate(T other) throws IllegalArgumentException;
+
+	/**
+	 * Returns a tree with the same contents as this one, in O(1) time. The two
+	 * share their storage, and an edit to either one copies only what it
+	 * changes, so neither sees the other's edits. A snapshot can be read on
+	 * another thread while this tree is edited.
+	 *
+	 * @return a tree holding the same characters as this one
+	 */
+	T snapshot();
+
+	/**
+	 * Starts counting and timing this tree's operations in metrics, which may
+	 * be shared with other trees. Snapshots taken from then on report to the
+	 * same metrics.
+	 *
+	 * @param metrics where to report, or null to stop reporting
+	 */
+	void setMetrics(EditTreeMetrics metrics);
+
+	/**
+	 * @return the metrics this tree reports to, or null if there are none
+	 */
+	EditTreeMetrics getMetrics();
+
+	/**
+	 * @param s the string to look for
+	 * @return the position in this tree of the first occurrence of s; -1 if s does
+	 *         not occur
+	 */
+	int find(String s);
+
+	/**
+	 * @param s   the string to search for
+	 * @param pos the position in the tree to begin the search
+	 * @return the position in this tree of the first occurrence of s that does not
+	 *         occur before position pos; -1 if s does not occur
+	 */
+	int find(String s, int pos);
+
+	/**
+	 * @param s the string to search for
+	 * @return the positions in this tree at which s occurs, overlapping ones
+	 *         included, in increasing order
+	 */
+	IntStream findAll(String s);
+
+	/**
+	 * @return the number of lines in this tree: one more than the number of
+	 *         '\n' characters
+	 */
+	int lineCount();
+
+	/**
+	 * @param pos a position in this tree, or size() for the end of it
+	 * @return the line that pos is on, counting from 0
+	 * @throws IndexOutOfBoundsException if pos is negative or greater than
+	 *                                   size()
+	 */
+	int lineOf(int pos) throws IndexOutOfBoundsException;
+
+	/**
+	 * @param line a line number, counting from 0
+	 * @return the position of the first character of the line
+	 * @throws IndexOutOfBoundsException unless 0 <= line < lineCount()
+	 */
+	int offsetOfLine(int line) throws IndexOutOfBoundsException;
+
+	/**
+	 * @param line a line number, counting from 0
+	 * @return the characters of the line, without the '\n' that ends it
+	 * @throws IndexOutOfBoundsException unless 0 <= line < lineCount()
+	 */
+	String getLine(int line) throws IndexOutOfBoundsException;
+
+	/**
+	 * @return the characters of this tree, in order, filled into one array of
+	 *         exactly size() characters
+	 */
+	char[] toCharArray();
+
+	/**
+	 * @return an inorder iterator that returns primitive chars
+	 */
+	CharIterator charIterator();
+
+	/**
+	 * @param pos position of the first character to return
+	 * @return an inorder iterator that returns primitive chars, starting at pos
+	 * @throws IndexOutOfBoundsException if pos is negative or greater than size()
+	 */
+	CharIterator charIterator(int pos) throws IndexOutOfBoundsException;
+
+	/**
+	 * @return the characters of this tree, as a sized stream that splits for
+	 *         parallel use. The tree must not be modified while it is in use.
+	 */
+	IntStream chars();
+}
@@ -1,26 +1,50 @@
 package editortrees;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.ref.WeakReference;
+import java.nio.BufferOverflowException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
-import java.util.Stack;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 import editortrees.Node.Code;
 
 // A height-balanced binary tree with rank that could be the basis for a text editor.
 
-public class EditTree {
+public class EditTree implements EditBuffer<EditTree> {
 
 	private Node root;
-	private int rotationCount;
+	private int size; // kept up to date by every edit so size() is O(1)
+	private long singleRotations;
+	private long doubleRotations; // each counts as two in totalRotationCount()
+	private EditTreeMetrics metrics; // null unless setMetrics() was called
+	private long levels; // levels split and joined through by this tree's edits
+
 	private DisplayableBinaryTree display = null;
+	private int joinedHeight; // height of the tree most recently returned by join()
+	private boolean heightChanged; // whether the most recent rotation or shrink changed the height of its subtree
+	private Node[] path; // the nodes an add or delete passed through, root first; allocated by the first edit
+	private Owner owner = new Owner(); // stamped on the nodes this tree may change in place
+	private int modCount; // bumped by every edit, so cursors know when their paths are stale
+	// the anchors in use, held weakly so that ones nobody holds are dropped;
+	// null until the first anchor is made
+	private ArrayList<WeakReference<Anchor>> anchors;
+	private int anchorLimit; // how many anchors there may be before they are pruned
 
 	/**
 	 * MILESTONE 1 Construct an empty tree
 	 */
 	public EditTree() {
 		root = Node.NULL_NODE;
-		rotationCount = 0;
+		size = 0;
 	}
 
 	/**
@@ -29,18 +53,19 @@ public class EditTree {
 	 * @param ch
 	 */
 	public EditTree(char ch) {
-		root = new Node(ch, null);
-		rotationCount = 0;
+		root = newNode(ch);
+		size = 1;
 	}
 
 	/**
 	 * MILESTONE 2 Make this tree be a copy of e, with all new nodes, but the same
-	 * shape and contents.
+	 * shape and contents. Large trees are copied on several threads.
 	 * 
 	 * @param e
 	 */
 	public EditTree(EditTree e) {
-		root = e.root.copy(e.root, null);
+		root = Node.copy(e.root, e.size, null, owner);
+		size = e.size;
 	}
 
 	/**
@@ -51,25 +76,103 @@ public class EditTree {
 	 * @param s
 	 */
 	public EditTree(String s) {
-		if (s.isEmpty()) {
-			return;
+		this((CharSequence) s);
+	}
+
+	/**
+	 * Create an EditTree whose toString is s, in O(N) time. Works for any
+	 * CharSequence, including StringBuilder and CharBuffer; the tree is built
+	 * straight from index ranges of s, so nothing is copied along the way. Large
+	 * texts are built on several threads, so s must not change meanwhile.
+	 * 
+	 * @param s
+	 */
+	public EditTree(CharSequence s) {
+		Timing t = begin();
+		root = Node.build(s, 0, s.length(), null, owner);
+		size = s.length();
+		end(t, EditTreeMetrics.Operation.BUILD, 0, size, size);
+	}
+
+	/**
+	 * Create an EditTree whose toString is new String(chars), in O(N) time.
+	 * 
+	 * @param chars
+	 */
+	public EditTree(char[] chars) {
+		this(CharBuffer.wrap(chars));
+	}
+
+	/**
+	 * Create an EditTree holding everything that remains in the reader, in O(N)
+	 * time. The reader is not closed.
+	 * 
+	 * @param in
+	 * @throws IOException if reading fails
+	 */
+	public EditTree(Reader in) throws IOException {
+		this(readFully(in));
+	}
+
+	// reads the rest of in into a CharBuffer that wraps the array it was read
+	// into
+	private static CharBuffer readFully(Reader in) throws IOException {
+		char[] buffer = new char[8192];
+		int length = 0;
+		int count;
+		while ((count = in.read(buffer, length, buffer.length - length)) != -1) {
+			length += count;
+			if (length == buffer.length) {
+				buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+			}
 		}
-		int mid = s.length() / 2;
-		char c = s.charAt(mid);
-		root = new Node(c, null);
-		root.rank = mid - 1;
-		root.right = root.buildFromStr(root, s.substring(mid + 1));
-		root.left = root.buildFromStr(root, s.substring(0, mid));
+		return CharBuffer.wrap(buffer, 0, length);
 	}
 
 	/**
 	 * MILESTONE 1 returns the total number of rotations done in this tree since it
-	 * was created. A double rotation counts as two.
+	 * was created. A double rotation counts as two. The count stops at
+	 * Integer.MAX_VALUE; EditTreeMetrics keeps long counts.
 	 *
 	 * @return number of rotations since this tree was created.
 	 */
 	public int totalRotationCount() {
-		return this.rotationCount; // replace by a real calculation.
+		return (int) Math.min(this.singleRotations + 2 * this.doubleRotations, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Starts counting and timing this tree's operations in metrics, which may
+	 * be shared with other trees. Snapshots taken from then on report to the
+	 * same metrics. Without metrics, and while no Flight Recorder recording
+	 * takes EditTreeEvents, an operation costs two extra checks.
+	 * 
+	 * @param metrics where to report, or null to stop reporting
+	 */
+	public void setMetrics(EditTreeMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return the metrics this tree reports to, or null if there are none
+	 */
+	public EditTreeMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	// starts timing an operation if there are metrics or a Flight Recorder
+	// recording takes EditTreeEvents; returns null if it is not timed
+	private Timing begin() {
+		return Timing.begin(this.metrics, this.singleRotations, this.doubleRotations, this.levels);
+	}
+
+	// reports the operation timed by t, on the characters from pos to
+	// pos + length, which visited nodes besides the levels this tree split
+	// and joined through meanwhile
+	private void end(Timing t, EditTreeMetrics.Operation op, int pos, int length, long nodes) {
+		if (t != null) {
+			t.end(this.metrics, op, this.size, pos, length, nodes, this.singleRotations, this.doubleRotations,
+					this.levels);
+		}
 	}
 
 	/**
@@ -77,13 +180,17 @@ public class EditTree {
 	 */
 	@Override
 	public String toString() {
-		Iterator<Character> iter = this.iterator(); //this is an in-order iterator 
-		StringBuilder sb = new StringBuilder();
-		while (iter.hasNext()) {
-			sb.append(iter.next().toString());
-		}
-		return sb.toString();
+		return new String(this.toCharArray());
+	}
 
+	/**
+	 * @return the characters of this tree, in order, filled into one array of
+	 *         exactly size() characters
+	 */
+	public char[] toCharArray() {
+		char[] result = new char[this.size()];
+		this.root.fill(result, 0);
+		return result;
 	}
 
 	/**
@@ -125,13 +232,7 @@ public class EditTree {
 		// you!
 		// 2. Unit tests are cumulative, and many things are based on add(), so
 		// make sure that you get this one correct.
-		if (root == Node.NULL_NODE) {
-			root = new Node(ch, null);
-			return;
-		}
-		MyWrapper wrapper = new MyWrapper();
-		root = root.add(ch, null, wrapper);
-		rotationCount += wrapper.rotationCount;
+		add(ch, size);
 	}
 
 	/**
@@ -146,13 +247,170 @@ public class EditTree {
 		if (pos < 0 || pos > this.size()) {
 			throw new IndexOutOfBoundsException();
 		}
-		if (root == Node.NULL_NODE) {
-			root = new Node(ch, null);
+		Timing t = begin();
+		int depth = insert(pos, ch);
+		end(t, EditTreeMetrics.Operation.ADD, pos, 1, depth);
+	}
+
+	/**
+	 * Inserts ch at position pos without recursion. The way down copies the
+	 * nodes this tree may not change and records them in path, with the turns
+	 * taken in a bit mask; the way back up fixes newline counts and balance
+	 * codes, rotating at most once. Nothing is allocated but the new node (and
+	 * the copies a snapshot forces).
+	 * 
+	 * @param pos position of the new character, already checked
+	 * @param ch  character to add
+	 * @return the number of nodes above the new one
+	 */
+	private int insert(int pos, char ch) {
+		claim();
+		Node[] path = path();
+		long leftTurns = 0; // bit i is set if the path went left at path[i]
+		int depth = 0;
+		Node n = root;
+		while (n != Node.NULL_NODE) {
+			n = own(n);
+			link(depth, leftTurns, n);
+			path[depth] = n;
+			if (pos <= n.rank) {
+				n.rank++;
+				leftTurns |= 1L << depth;
+				n = n.left;
+			} else {
+				pos -= n.rank + 1;
+				n = n.right;
+			}
+			depth++;
+		}
+		link(depth, leftTurns, newNode(ch));
+		size++;
+
+		boolean grew = true;
+		for (int i = depth - 1; i >= 0; i--) {
+			n = path[i];
+			n.countNewlines();
+			if (!grew) {
+				continue;
+			}
+			if ((leftTurns & 1L << i) != 0) {
+				if (n.balance == Code.RIGHT) {
+					n.balance = Code.SAME;
+					grew = false;
+				} else if (n.balance == Code.SAME) {
+					n.balance = Code.LEFT;
+				} else {
+					link(i, leftTurns, rotateRight(n));
+					grew = false;
+				}
+			} else {
+				if (n.balance == Code.LEFT) {
+					n.balance = Code.SAME;
+					grew = false;
+				} else if (n.balance == Code.SAME) {
+					n.balance = Code.RIGHT;
+				} else {
+					link(i, leftTurns, rotateLeft(n));
+					grew = false;
+				}
+			}
+		}
+		changed();
+		return depth;
+	}
+
+	// an AVL tree of 2^31 nodes is at most 45 tall, so the turns of any path
+	// fit in a long
+	private static final int MAX_PATH = 64;
+
+	private Node[] path() {
+		if (path == null) {
+			path = new Node[MAX_PATH];
+		}
+		return path;
+	}
+
+	// puts n where the path goes from path[depth - 1], or at the root if depth
+	// is 0
+	private void link(int depth, long leftTurns, Node n) {
+		if (depth == 0) {
+			root = n;
+			setParent(n, null);
+			return;
+		}
+		Node parent = path[depth - 1];
+		if ((leftTurns & 1L << depth - 1) != 0) {
+			parent.left = n;
+		} else {
+			parent.right = n;
+		}
+		setParent(n, parent);
+	}
+
+	// the node at pos, after copying every node on the path to it that this
+	// tree may not change
+	private Node ownPath(int pos) {
+		Node[] path = path();
+		long leftTurns = 0;
+		int depth = 0;
+		Node n = root;
+		while (true) {
+			n = own(n);
+			link(depth, leftTurns, n);
+			if (pos == n.rank) {
+				return n;
+			}
+			path[depth] = n;
+			if (pos < n.rank) {
+				leftTurns |= 1L << depth;
+				n = n.left;
+			} else {
+				pos -= n.rank + 1;
+				n = n.right;
+			}
+			depth++;
+		}
+	}
+
+	/**
+	 * Inserts all of s so that its first character ends up at position pos, in
+	 * O(k + log N) time where k is the length of s. The characters of s are
+	 * built into a balanced subtree, this tree is split at pos and the pieces are
+	 * joined back together. Rotations done by the joins are counted by
+	 * totalRotationCount().
+	 * 
+	 * @param s   characters to add
+	 * @param pos position of the first added character
+	 * @throws IndexOutOfBoundsException if pos is negative or too large for this
+	 *                                   tree
+	 */
+	public void add(CharSequence s, int pos) throws IndexOutOfBoundsException {
+		if (pos < 0 || pos > this.size()) {
+			throw new IndexOutOfBoundsException();
+		}
+		int k = s.length();
+		if (k == 0) {
 			return;
 		}
-		MyWrapper wrapper = new MyWrapper();
-		root = root.add(ch, pos, null, wrapper);
-		rotationCount += wrapper.rotationCount;
+		Timing t = begin();
+		claim();
+		Halves halves = new Halves();
+		split(this.root, this.height(), this.size, pos, halves);
+		// the first and last characters of s become the keys of the joins, so
+		// no node has to be deleted to get them
+		Node first = newNode(s.charAt(0));
+		if (k == 1) {
+			this.root = join(halves.left, halves.leftHeight, pos, first, halves.right, halves.rightHeight);
+		} else {
+			Node middle = Node.build(s, 1, k - 1, null, owner);
+			Node last = newNode(s.charAt(k - 1));
+			Node left = join(halves.left, halves.leftHeight, pos, first, middle, Node.floorLog2(k - 2));
+			this.root = join(left, joinedHeight, pos + k - 1, last, halves.right, halves.rightHeight);
+		}
+		this.root.parent = null;
+		this.size += k;
+		changed();
+		end(t, EditTreeMetrics.Operation.ADD, pos, k, 0);
 	}
 
 	/**
@@ -166,7 +424,24 @@ public class EditTree {
 		if (pos < 0 || pos >= this.size()) {
 			throw new IndexOutOfBoundsException();
 		}
-		return this.root.get(this.root, pos);
+		Timing t = begin();
+		if (t == null) {
+			return this.root.get(this.root, pos);
+		}
+		Node n = this.root;
+		int rest = pos;
+		int visited = 1;
+		while (rest != n.rank) {
+			if (rest < n.rank) {
+				n = n.left;
+			} else {
+				rest -= n.rank + 1;
+				n = n.right;
+			}
+			visited++;
+		}
+		end(t, EditTreeMetrics.Operation.GET, pos, 1, visited);
+		return n.element;
 
 	}
 
@@ -186,7 +461,7 @@ public class EditTree {
 	 *         you have one.
 	 */
 	public int size() {
-		return root.size(root);
+		return this.size;
 	}
 
 	/**
@@ -205,15 +480,307 @@ public class EditTree {
 		if (pos < 0 || pos >= this.size()) {
 			throw new IndexOutOfBoundsException();
 		}
-		char toBeFound = get(pos);
-		MyWrapper wrapper = new MyWrapper();
-		root = root.delete(pos, wrapper);
-		rotationCount += wrapper.rotationCount;
-		return toBeFound;
+		Timing t = begin();
+		int deletedAt = pos;
+		claim();
+		Node[] path = path();
+		long leftTurns = 0; // bit i is set if the path went left at path[i]
+		int depth = 0;
+		Node n = root;
+		while (pos != n.rank) {
+			n = own(n);
+			link(depth, leftTurns, n);
+			path[depth] = n;
+			if (pos < n.rank) {
+				n.rank--;
+				leftTurns |= 1L << depth;
+				n = n.left;
+			} else {
+				pos -= n.rank + 1;
+				n = n.right;
+			}
+			depth++;
+		}
+		char deleted = n.element;
+		if (n.left == Node.NULL_NODE || n.right == Node.NULL_NODE) {
+			link(depth, leftTurns, n.left == Node.NULL_NODE ? n.right : n.left);
+		} else {
+			// two children: the successor's node is unlinked and takes this
+			// node's place, so every node keeps its character and anchors stay
+			// put. n stands in at its own place until then.
+			int at = depth;
+			n = own(n);
+			link(depth, leftTurns, n);
+			path[depth++] = n;
+			Node successor = n.right;
+			while (successor.left != Node.NULL_NODE) {
+				successor = own(successor);
+				link(depth, leftTurns, successor);
+				path[depth] = successor;
+				successor.rank--;
+				leftTurns |= 1L << depth;
+				successor = successor.left;
+				depth++;
+			}
+			link(depth, leftTurns, successor.right);
+			successor = own(successor);
+			successor.left = n.left;
+			successor.right = n.right;
+			successor.rank = n.rank;
+			successor.balance = n.balance;
+			setParent(successor.left, successor);
+			setParent(successor.right, successor);
+			link(at, leftTurns, successor);
+			path[at] = successor;
+		}
+		size--;
+
+		boolean shrank = true;
+		for (int i = depth - 1; i >= 0; i--) {
+			n = path[i];
+			n.countNewlines();
+			if (!shrank) {
+				continue;
+			}
+			heightChanged = true;
+			Node subtree = (leftTurns & 1L << i) != 0 ? leftShrank(n) : rightShrank(n);
+			if (subtree != n) {
+				link(i, leftTurns, subtree);
+			}
+			shrank = heightChanged;
+		}
+		changed();
+		end(t, EditTreeMetrics.Operation.DELETE, deletedAt, 1, depth);
+		return deleted;
+	}
+
+	// n's left subtree just got shorter; heightChanged says whether n did too
+	private Node leftShrank(Node n) {
+		if (n.balance == Code.LEFT) {
+			n.balance = Code.SAME;
+			return n;
+		} else if (n.balance == Code.SAME) {
+			n.balance = Code.RIGHT;
+			heightChanged = false;
+			return n;
+		}
+		return rotateLeft(n);
+	}
+
+	// mirror image of leftShrank
+	private Node rightShrank(Node n) {
+		if (n.balance == Code.RIGHT) {
+			n.balance = Code.SAME;
+			return n;
+		} else if (n.balance == Code.SAME) {
+			n.balance = Code.LEFT;
+			heightChanged = false;
+			return n;
+		}
+		return rotateRight(n);
 	}
 
 	/**
-	 * MILESTONE 3, EASY This method operates in O(length*log N), where N is the
+	 * Rebalances n, whose left subtree is two taller than its right, with a
+	 * single or double rotation. heightChanged is set to whether the result is
+	 * shorter than n was; only a deletion can leave it the same height.
+	 * 
+	 * @param n
+	 * @return the new root of the subtree
+	 */
+	private Node rotateRight(Node n) {
+		Node c = own(n.left);
+		if (c.balance != Code.RIGHT) {
+			n.left = c.right;
+			setParent(n.left, n);
+			n.rank -= c.rank + 1;
+			c.right = n;
+			setParent(n, c);
+			n.countNewlines();
+			c.countNewlines();
+			heightChanged = c.balance == Code.LEFT;
+			n.balance = heightChanged ? Code.SAME : Code.LEFT;
+			c.balance = heightChanged ? Code.SAME : Code.RIGHT;
+			singleRotations++;
+			return c;
+		}
+		// double rotation: c's right child g becomes the root
+		Node g = own(c.right);
+		c.right = g.left;
+		setParent(c.right, c);
+		n.left = g.right;
+		setParent(n.left, n);
+		n.rank -= c.rank + g.rank + 2;
+		g.rank += c.rank + 1;
+		g.left = c;
+		g.right = n;
+		setParent(c, g);
+		setParent(n, g);
+		c.countNewlines();
+		n.countNewlines();
+		g.countNewlines();
+		c.balance = g.balance == Code.RIGHT ? Code.LEFT : Code.SAME;
+		n.balance = g.balance == Code.LEFT ? Code.RIGHT : Code.SAME;
+		g.balance = Code.SAME;
+		heightChanged = true;
+		doubleRotations++;
+		return g;
+	}
+
+	// mirror image of rotateRight: n's right subtree is two taller
+	private Node rotateLeft(Node n) {
+		Node c = own(n.right);
+		if (c.balance != Code.LEFT) {
+			n.right = c.left;
+			setParent(n.right, n);
+			c.rank += n.rank + 1;
+			c.left = n;
+			setParent(n, c);
+			n.countNewlines();
+			c.countNewlines();
+			heightChanged = c.balance == Code.RIGHT;
+			n.balance = heightChanged ? Code.SAME : Code.RIGHT;
+			c.balance = heightChanged ? Code.SAME : Code.LEFT;
+			singleRotations++;
+			return c;
+		}
+		// double rotation: c's left child g becomes the root
+		Node g = own(c.left);
+		n.right = g.left;
+		setParent(n.right, n);
+		c.left = g.right;
+		setParent(c.left, c);
+		c.rank -= g.rank + 1;
+		g.rank += n.rank + 1;
+		g.left = n;
+		g.right = c;
+		setParent(n, g);
+		setParent(c, g);
+		n.countNewlines();
+		c.countNewlines();
+		g.countNewlines();
+		n.balance = g.balance == Code.RIGHT ? Code.LEFT : Code.SAME;
+		c.balance = g.balance == Code.LEFT ? Code.RIGHT : Code.SAME;
+		g.balance = Code.SAME;
+		heightChanged = true;
+		doubleRotations++;
+		return g;
+	}
+
+	/**
+	 * Returns a tree with the same contents as this one, in O(1) time. The two
+	 * trees share every node; from then on an edit to either one copies the
+	 * O(log N) nodes on its path instead of changing shared ones, so neither
+	 * tree sees the other's edits and old versions cost only the nodes that
+	 * have since been replaced. A snapshot can be handed to another thread (a
+	 * save or an indexer, say) and read there while this tree is edited.
+	 * 
+	 * @return a tree holding the same characters as this one
+	 */
+	public EditTree snapshot() {
+		this.owner.shared = true;
+		EditTree result = new EditTree();
+		result.root = this.root;
+		result.size = this.size;
+		result.owner = this.owner;
+		result.metrics = this.metrics;
+		return result;
+	}
+
+	/**
+	 * the token that marks the nodes a tree may change in place. Trees split
+	 * from one another share it, since each half has its own nodes. Once a
+	 * snapshot shares it, it marks nodes that no tree may change, and every
+	 * tree holding it moves on to a fresh token before its next edit.
+	 */
+	private static class Owner {
+		boolean shared;
+	}
+
+	// called before every edit: makes sure this tree holds a token that no
+	// snapshot shares
+	private void claim() {
+		this.modCount++;
+		if (this.owner.shared) {
+			if (this.anchors == null) {
+				this.owner = new Owner();
+			} else {
+				reclaimAnchors();
+			}
+		}
+	}
+
+	// Moves to a fresh token, copying the paths to the anchored nodes so that
+	// they are this tree's own again; anchors are resolved through parent
+	// pointers, which are only kept up to date in nodes the tree owns. Their
+	// positions are read first, while the old paths still say where they are.
+	// Anchors whose characters have left this tree, and ones nobody holds any
+	// more, are dropped rather than copied for.
+	private void reclaimAnchors() {
+		Anchor[] live = new Anchor[this.anchors.size()];
+		int[] positions = new int[live.length];
+		int kept = pruneAnchors(live, positions);
+		this.owner = new Owner();
+		for (int i = 0; i < kept; i++) {
+			live[i].node = ownPath(positions[i]);
+		}
+	}
+
+	// Drops the anchors that nobody holds and the ones whose characters have
+	// been deleted or split off, marking the latter as gone, and returns how
+	// many are left. Each costs O(log N), so this is only done before the
+	// anchors are copied for, or once there are twice as many as were left
+	// the last time. If live is not null, the anchors left and their positions
+	// are put in live and positions.
+	private int pruneAnchors(Anchor[] live, int[] positions) {
+		int kept = 0;
+		for (int i = 0; i < this.anchors.size(); i++) {
+			WeakReference<Anchor> ref = this.anchors.get(i);
+			Anchor anchor = ref.get();
+			if (anchor == null) {
+				continue;
+			}
+			int pos = positionOf(anchor);
+			if (pos < 0) {
+				anchor.node = null;
+				continue;
+			}
+			if (live != null) {
+				live[kept] = anchor;
+				positions[kept] = pos;
+			}
+			this.anchors.set(kept++, ref);
+		}
+		this.anchors.subList(kept, this.anchors.size()).clear();
+		this.anchorLimit = Math.max(16, 2 * kept);
+		return kept;
+	}
+
+	// a node that this tree may change: n itself if it carries this tree's
+	// token, otherwise a copy that does. The caller links the result in.
+	private Node own(Node n) {
+		if (n.owner == this.owner) {
+			return n;
+		}
+		Node copy = new Node(n.element, n.parent);
+		copy.left = n.left;
+		copy.right = n.right;
+		copy.rank = n.rank;
+		copy.balance = n.balance;
+		copy.newlines = n.newlines;
+		copy.owner = this.owner;
+		return copy;
+	}
+
+	private Node newNode(char ch) {
+		Node result = new Node(ch, null);
+		result.owner = this.owner;
+		result.countNewlines();
+		return result;
+	}
+
+	/**
+	 * MILESTONE 3, EASY This method operates in O(length + log N), where N is the
 	 * size of this tree.
 	 * 
 	 * @param pos    location of the beginning of the string to retrieve
@@ -223,15 +790,140 @@ public class EditTree {
 	 *                                   legitimate indexes within this tree.
 	 */
 	public String get(int pos, int length) throws IndexOutOfBoundsException {
-		int size = this.size();
-		if (pos > size || pos + length - 1 > size - 1 || pos < 0) {
+		checkRange(pos, length);
+		Timing t = begin();
+		char[] result = new char[length];
+		this.get(pos, length, result, 0);
+		end(t, EditTreeMetrics.Operation.GET, pos, length, length);
+		return new String(result);
+	}
+
+	/**
+	 * Copies length characters starting at position pos into dst, without
+	 * allocating. Operates in O(length + log N).
+	 * 
+	 * @param pos       location of the first character to copy
+	 * @param length    number of characters to copy
+	 * @param dst       the array to fill
+	 * @param dstOffset where in dst the first character goes
+	 * @throws IndexOutOfBoundsException if the range is not within this tree or
+	 *                                   does not fit in dst
+	 */
+	public void get(int pos, int length, char[] dst, int dstOffset) throws IndexOutOfBoundsException {
+		checkRange(pos, length);
+		if (dstOffset < 0 || length > dst.length - dstOffset) {
 			throw new IndexOutOfBoundsException();
 		}
-		StringBuilder sb = new StringBuilder();
+		this.root.fill(dst, dstOffset, pos, pos + length);
+	}
+
+	/**
+	 * Puts length characters starting at position pos into dst, advancing its
+	 * position. Heap buffers are filled in place through their backing array.
+	 * 
+	 * @param pos    location of the first character to copy
+	 * @param length number of characters to copy
+	 * @param dst    the buffer to fill
+	 * @throws IndexOutOfBoundsException if the range is not within this tree
+	 * @throws BufferOverflowException   if dst has fewer than length characters
+	 *                                   remaining
+	 */
+	public void get(int pos, int length, CharBuffer dst) throws IndexOutOfBoundsException {
+		checkRange(pos, length);
+		if (dst.remaining() < length) {
+			throw new BufferOverflowException();
+		}
+		if (dst.hasArray()) {
+			this.get(pos, length, dst.array(), dst.arrayOffset() + dst.position());
+			dst.position(dst.position() + length);
+			return;
+		}
+		CharIterator iter = this.charIterator(pos);
 		for (int i = 0; i < length; i++) {
-			sb.append(this.root.get(this.root, pos + i));
+			dst.put(iter.nextChar());
+		}
+	}
+
+	/**
+	 * @return the number of lines in this tree: one more than the number of
+	 *         '\n' characters, so an empty tree has one (empty) line. O(1).
+	 */
+	public int lineCount() {
+		return this.root.newlines + 1;
+	}
+
+	/**
+	 * @param pos a position in this tree, or size() for the end of it
+	 * @return the line that pos is on, counting from 0: the number of '\n'
+	 *         characters before pos. O(log N).
+	 * @throws IndexOutOfBoundsException if pos is negative or greater than
+	 *                                   size()
+	 */
+	public int lineOf(int pos) throws IndexOutOfBoundsException {
+		if (pos < 0 || pos > this.size()) {
+			throw new IndexOutOfBoundsException();
+		}
+		int line = 0;
+		Node n = this.root;
+		while (n != Node.NULL_NODE) {
+			if (pos <= n.rank) {
+				n = n.left;
+			} else {
+				// everything from n's left subtree up to n itself is before pos
+				line += n.left.newlines + (n.element == '\n' ? 1 : 0);
+				pos -= n.rank + 1;
+				n = n.right;
+			}
+		}
+		return line;
+	}
+
+	/**
+	 * @param line a line number, counting from 0
+	 * @return the position of the first character of the line, which is just
+	 *         past the line'th '\n'. O(log N).
+	 * @throws IndexOutOfBoundsException unless 0 <= line < lineCount()
+	 */
+	public int offsetOfLine(int line) throws IndexOutOfBoundsException {
+		if (line < 0 || line >= this.lineCount()) {
+			throw new IndexOutOfBoundsException();
+		}
+		int offset = 0;
+		Node n = this.root;
+		// line is now the number of '\n's still to pass
+		while (line > 0) {
+			if (line <= n.left.newlines) {
+				n = n.left;
+				continue;
+			}
+			line -= n.left.newlines;
+			if (n.element == '\n' && --line == 0) {
+				return offset + n.rank + 1;
+			}
+			offset += n.rank + 1;
+			n = n.right;
+		}
+		return offset;
+	}
+
+	/**
+	 * @param line a line number, counting from 0
+	 * @return the characters of the line, without the '\n' that ends it. O(log
+	 *         N + length of the line).
+	 * @throws IndexOutOfBoundsException unless 0 <= line < lineCount()
+	 */
+	public String getLine(int line) throws IndexOutOfBoundsException {
+		int start = this.offsetOfLine(line);
+		int end = line + 1 < this.lineCount() ? this.offsetOfLine(line + 1) - 1 : this.size();
+		return this.get(start, end - start);
+	}
+
+	// throws unless [pos, pos + length) is a (possibly empty) range of this tree
+	private void checkRange(int pos, int length) {
+		int size = this.size();
+		if (pos < 0 || length < 0 || pos > size || length > size - pos) {
+			throw new IndexOutOfBoundsException();
 		}
-		return sb.toString();
 	}
 
 	/**
@@ -244,29 +936,45 @@ public class EditTree {
 	 * @throws IllegalArgumentException if this == other
 	 */
 	public void concatenate(EditTree other) throws IllegalArgumentException {
-		int size = this.size();
-		int otherSize = other.size();
 		if (this == other) {
 			throw new IllegalArgumentException();
-		} else if (otherSize == 0) {
-			return;
-		} else if (size == 0) {
-			this.root = other.root;
-			other.root = Node.NULL_NODE;
+		} else if (other.size == 0) {
 			return;
 		}
-		if (this.height() < other.height()) {
-			MyWrapper wrap = new MyWrapper();
-			wrap.direction = false;
-			other.root = other.root.concatenate(other.root, this, other.height(), wrap);
+		Timing t = begin();
+		int added = other.size;
+		append(other);
+		changed();
+		other.changed();
+		end(t, EditTreeMetrics.Operation.CONCATENATE, this.size - added, added, 0);
+	}
+
+	// concatenate without the checks, the timing or the display: moves the
+	// characters of other, which is not empty, to the end of this tree
+	private void append(EditTree other) {
+		claim();
+		if (other.owner != this.owner) {
+			// other's nodes come under this tree's token only when copied, so
+			// none may be changed in place from now on
+			other.owner.shared = true;
+		}
+		other.modCount++;
+		if (this.size == 0) {
 			this.root = other.root;
+			this.size = other.size;
 			other.root = Node.NULL_NODE;
+			other.size = 0;
 			return;
 		}
-		MyWrapper wrap = new MyWrapper();
-		wrap.direction = true;
-		this.root = this.root.concatenate(this.root, other, this.height(), wrap);
+		// split off other's first node to serve as the join key; each height is
+		// worked out once and passed down from there
+		Halves halves = new Halves();
+		split(other.root, other.height(), other.size, 1, halves);
+		this.root = join(this.root, this.height(), this.size, halves.left, halves.right, halves.rightHeight);
+		this.root.parent = null;
+		this.size += other.size;
 		other.root = Node.NULL_NODE;
+		other.size = 0;
 	}
 
 	/**
@@ -282,127 +990,246 @@ public class EditTree {
 		if (pos < 0 || pos >= this.size()) {
 			throw new IndexOutOfBoundsException();
 		}
-		// use a stack to keep track of the path of finding the target node
-		Stack<Node> s = new Stack<Node>();
-		s = root.fillStack(s, pos, root);
-		Node target = s.pop();
-		Node left = target.left;
-		Node right = constructTree(Node.NULL_NODE, target, target.right);
-		// poping nodes out from the stack for modification
-		while (!s.isEmpty()) {
-			Node temp = target;
-			target = s.pop();
-			if (temp == target.right) {
-				left = constructTree(target.left, target, left);
-			} else {
-				right = constructTree(right, target, target.right);
-			}
-		}
-		this.root = left;
-		if (this.size() > 1) {
-			this.root = balance(root);
-		}
+		Timing t = begin();
+		EditTree result = splitOff(pos);
+		changed();
+		end(t, EditTreeMetrics.Operation.SPLIT, pos, result.size, 0);
+		return result;
+	}
+
+	// split without the checks, the timing or the display
+	private EditTree splitOff(int pos) {
+		claim();
+		Halves halves = new Halves();
+		split(this.root, this.height(), this.size, pos, halves);
+		this.root = halves.left;
 		EditTree result = new EditTree();
-		result.root = right;
+		result.owner = this.owner;
+		result.root = halves.right;
+		result.size = this.size - pos;
+		this.size = pos;
 		return result;
 	}
 
 	/**
-	 * handle update balance and rotation after split
+	 * the two trees produced by splitting a subtree, with their heights
+	 */
+	private static class Halves {
+		Node left, right;
+		int leftHeight, rightHeight;
+	}
+
+	/**
+	 * Splits the subtree n into the nodes before pos and the nodes from pos on.
+	 * Heights and sizes are passed down rather than recomputed, and the joins on
+	 * the way back up cost O(log N) in total.
 	 * 
-	 * @param node
-	 * @return updated or rotated node
+	 * @param n      root of the subtree to split
+	 * @param height height of n
+	 * @param size   number of nodes in n
+	 * @param pos    position within n of the first node that goes to the right
+	 * @param out    receives both halves and their heights
 	 */
-	public Node balance(Node node) {
-		// if is unbalanced and left subtree is bigger
-		if (node.left.height(0) - node.right.height(0) > 1) {
-			String str = node.updateBalance(node, new MyWrapper(), false);
-			if (str.equals("LeftFirst")) {
-				node.left = node.handleRotation(node.left, node.left.right, new MyWrapper(), str);
-				return node.handleRotation(node, node.left, new MyWrapper(), "SR");
-			} else {
-				return node.handleRotation(node, node.left, new MyWrapper(), str);
-			}
-		} else {// if is unbalanced and right subtree is bigger
-			String str = node.updateBalance(node, new MyWrapper(), true);
-			if (str.equals("RightFirst")) {
-				node.right = node.handleRotation(node.right, node.right.left, new MyWrapper(), str);
-				return node.handleRotation(node, node.right, new MyWrapper(), "SL");
-			} else {
-				return node.handleRotation(node, node.right, new MyWrapper(), str);
-			}
+	private void split(Node n, int height, int size, int pos, Halves out) {
+		if (n == Node.NULL_NODE) {
+			out.left = Node.NULL_NODE;
+			out.right = Node.NULL_NODE;
+			out.leftHeight = -1;
+			out.rightHeight = -1;
+			return;
+		}
+		levels++;
+		Node left = n.left, right = n.right;
+		int leftHeight = n.balance == Code.RIGHT ? height - 2 : height - 1;
+		int rightHeight = n.balance == Code.LEFT ? height - 2 : height - 1;
+		int leftSize = n.rank;
+		if (pos <= leftSize) {
+			split(left, leftHeight, leftSize, pos, out);
+			out.right = join(out.right, out.rightHeight, leftSize - pos, n, right, rightHeight);
+			out.rightHeight = joinedHeight;
+		} else {
+			split(right, rightHeight, size - leftSize - 1, pos - leftSize - 1, out);
+			out.left = join(left, leftHeight, leftSize, n, out.left, out.leftHeight);
+			out.leftHeight = joinedHeight;
 		}
+		setParent(out.left, null);
+		setParent(out.right, null);
 	}
 
 	/**
-	 * construct subtrees this method was implemented based on the method pasteHB in
-	 * "Data structures in Pascal" by Edward M.Reingold & Wilfred J.Hansen which was
-	 * provided in the EditorTree assignment
+	 * Joins l, the single node k and r into one balanced tree whose inorder
+	 * traversal is l, then k, then r. Runs in time proportional to the
+	 * difference in height of l and r; the height of the result is left in
+	 * joinedHeight.
 	 * 
-	 * @param left subtree, sub root, right subtree
-	 * @return a node with its subtrees constructed
+	 * @param l          left tree
+	 * @param leftHeight height of l
+	 * @param leftSize   number of nodes in l
+	 * @param k          node to put between l and r; its old links are ignored
+	 * @param r          right tree
+	 * @param rightHeight height of r
+	 * @return the root of the joined tree
 	 */
-	public Node constructTree(Node left, Node subRoot, Node right) {
-		int leftHeight = left.height(0);
-		int rightHeight = right.height(0);
-		Node newNode = Node.NULL_NODE, parent = Node.NULL_NODE;
-		int newNodeHeight;
-		// if left subtree is bigger than the right subtree
-		if (leftHeight >= rightHeight) {
-			newNode = left;
-			newNodeHeight = leftHeight;
-			while (newNodeHeight - rightHeight > 1) {
-				if (newNode.balance == Code.LEFT) {
-					newNodeHeight -= 2;
-				} else {
-					newNodeHeight -= 1;
-				}
-				parent = newNode;
-				newNode = newNode.right;
-			}
-			// modify the subtrees
-			subRoot.left = newNode;
-			subRoot.right = right;
-			subRoot.rank = newNode.size(newNode);
-			if (newNodeHeight == rightHeight) {
-				subRoot.balance = Code.SAME;
-			} else {
-				subRoot.balance = Code.LEFT;
-			}
-			if (parent != Node.NULL_NODE) {
-				parent.right = subRoot;
-			} else {
-				left = subRoot;
-			}
-			return balance(left);
+	private Node join(Node l, int leftHeight, int leftSize, Node k, Node r, int rightHeight) {
+		if (leftHeight > rightHeight + 1) {
+			return joinRight(l, leftHeight, leftSize, k, r, rightHeight);
+		} else if (rightHeight > leftHeight + 1) {
+			return joinLeft(l, leftHeight, leftSize, k, r, rightHeight);
 		}
-		// same concepts with the part above but in the opposite direction
-		newNode = right;
-		newNodeHeight = rightHeight;
-		while (newNodeHeight - leftHeight > 1) {
-			if (newNode.balance == Code.RIGHT) {
-				newNodeHeight -= 2;
-			} else {
-				newNodeHeight -= 1;
-			}
-			parent = newNode;
-			newNode = newNode.left;
+		k = own(k);
+		k.left = l;
+		k.right = r;
+		k.rank = leftSize;
+		k.balance = compare(leftHeight, rightHeight);
+		setParent(l, k);
+		setParent(r, k);
+		k.countNewlines();
+		joinedHeight = Math.max(leftHeight, rightHeight) + 1;
+		return k;
+	}
+
+	// l is the taller tree: walk down its right spine to a subtree about as tall
+	// as r, join there, and rebalance on the way back up
+	private Node joinRight(Node l, int leftHeight, int leftSize, Node k, Node r, int rightHeight) {
+		levels++;
+		l = own(l);
+		int llHeight = l.balance == Code.RIGHT ? leftHeight - 2 : leftHeight - 1;
+		int lrHeight = l.balance == Code.LEFT ? leftHeight - 2 : leftHeight - 1;
+		Node t = join(l.right, lrHeight, leftSize - l.rank - 1, k, r, rightHeight);
+		int tHeight = joinedHeight;
+		l.right = t;
+		setParent(t, l);
+		l.countNewlines();
+		if (tHeight <= llHeight + 1) {
+			l.balance = compare(llHeight, tHeight);
+			joinedHeight = Math.max(llHeight, tHeight) + 1;
+			return l;
 		}
-		subRoot.left = left;
-		subRoot.right = newNode;
-		subRoot.rank = left.size(left);
-		if (newNodeHeight == leftHeight) {
-			subRoot.balance = Code.SAME;
-		} else {
-			subRoot.balance = Code.RIGHT;
+		// t is now two taller than l's left subtree
+		int tlHeight = t.balance == Code.RIGHT ? tHeight - 2 : tHeight - 1;
+		int trHeight = t.balance == Code.LEFT ? tHeight - 2 : tHeight - 1;
+		if (tlHeight > trHeight) {
+			// double rotation: t's left child g becomes the root
+			Node g = own(t.left);
+			int glHeight = g.balance == Code.RIGHT ? tlHeight - 2 : tlHeight - 1;
+			int grHeight = g.balance == Code.LEFT ? tlHeight - 2 : tlHeight - 1;
+			t.left = g.right;
+			setParent(t.left, t);
+			t.rank -= g.rank + 1;
+			t.balance = compare(grHeight, trHeight);
+			int newTHeight = Math.max(grHeight, trHeight) + 1;
+			l.right = g.left;
+			setParent(l.right, l);
+			g.rank += l.rank + 1;
+			l.balance = compare(llHeight, glHeight);
+			int newLHeight = Math.max(llHeight, glHeight) + 1;
+			g.left = l;
+			g.right = t;
+			setParent(l, g);
+			setParent(t, g);
+			l.countNewlines();
+			t.countNewlines();
+			g.countNewlines();
+			g.balance = compare(newLHeight, newTHeight);
+			joinedHeight = Math.max(newLHeight, newTHeight) + 1;
+			doubleRotations++;
+			return g;
 		}
-		if (parent != Node.NULL_NODE) {
-			parent.left = subRoot;
-		} else {
-			right = subRoot;
+		// single left rotation
+		l.right = t.left;
+		setParent(l.right, l);
+		t.rank += l.rank + 1;
+		l.balance = compare(llHeight, tlHeight);
+		int newLHeight = Math.max(llHeight, tlHeight) + 1;
+		t.left = l;
+		setParent(l, t);
+		l.countNewlines();
+		t.countNewlines();
+		t.balance = compare(newLHeight, trHeight);
+		joinedHeight = Math.max(newLHeight, trHeight) + 1;
+		singleRotations++;
+		return t;
+	}
+
+	// mirror image of joinRight: r is the taller tree
+	private Node joinLeft(Node l, int leftHeight, int leftSize, Node k, Node r, int rightHeight) {
+		levels++;
+		r = own(r);
+		int rlHeight = r.balance == Code.RIGHT ? rightHeight - 2 : rightHeight - 1;
+		int rrHeight = r.balance == Code.LEFT ? rightHeight - 2 : rightHeight - 1;
+		Node t = join(l, leftHeight, leftSize, k, r.left, rlHeight);
+		int tHeight = joinedHeight;
+		r.left = t;
+		setParent(t, r);
+		r.countNewlines();
+		r.rank += leftSize + 1;
+		if (tHeight <= rrHeight + 1) {
+			r.balance = compare(tHeight, rrHeight);
+			joinedHeight = Math.max(tHeight, rrHeight) + 1;
+			return r;
+		}
+		// t is now two taller than r's right subtree
+		int tlHeight = t.balance == Code.RIGHT ? tHeight - 2 : tHeight - 1;
+		int trHeight = t.balance == Code.LEFT ? tHeight - 2 : tHeight - 1;
+		if (trHeight > tlHeight) {
+			// double rotation: t's right child g becomes the root
+			Node g = own(t.right);
+			int glHeight = g.balance == Code.RIGHT ? trHeight - 2 : trHeight - 1;
+			int grHeight = g.balance == Code.LEFT ? trHeight - 2 : trHeight - 1;
+			t.right = g.left;
+			setParent(t.right, t);
+			g.rank += t.rank + 1;
+			t.balance = compare(tlHeight, glHeight);
+			int newTHeight = Math.max(tlHeight, glHeight) + 1;
+			r.left = g.right;
+			setParent(r.left, r);
+			r.rank -= g.rank + 1;
+			r.balance = compare(grHeight, rrHeight);
+			int newRHeight = Math.max(grHeight, rrHeight) + 1;
+			g.left = t;
+			g.right = r;
+			setParent(t, g);
+			setParent(r, g);
+			t.countNewlines();
+			r.countNewlines();
+			g.countNewlines();
+			g.balance = compare(newTHeight, newRHeight);
+			joinedHeight = Math.max(newTHeight, newRHeight) + 1;
+			doubleRotations++;
+			return g;
+		}
+		// single right rotation
+		r.left = t.right;
+		setParent(r.left, r);
+		r.rank -= t.rank + 1;
+		r.balance = compare(trHeight, rrHeight);
+		int newRHeight = Math.max(trHeight, rrHeight) + 1;
+		t.right = r;
+		setParent(r, t);
+		r.countNewlines();
+		t.countNewlines();
+		t.balance = compare(tlHeight, newRHeight);
+		joinedHeight = Math.max(tlHeight, newRHeight) + 1;
+		singleRotations++;
+		return t;
+	}
+
+	// links child to parent, leaving the NULL_NODE and nodes that this tree may
+	// not change untouched
+	private void setParent(Node child, Node parent) {
+		if (child != Node.NULL_NODE && child.owner == this.owner) {
+			child.parent = parent;
+		}
+	}
+
+	// the balance code of a node whose subtrees have the given heights
+	private static Code compare(int leftHeight, int rightHeight) {
+		if (leftHeight > rightHeight) {
+			return Code.LEFT;
+		} else if (leftHeight < rightHeight) {
+			return Code.RIGHT;
 		}
-		left = right;
-		return balance(left);
+		return Code.SAME;
 	}
 
 	/**
@@ -419,36 +1246,35 @@ public class EditTree {
 	 *                                   range for this tree.
 	 */
 	public EditTree delete(int start, int length) throws IndexOutOfBoundsException {
-		if (start < 0 || start + length >= this.size())
+		if (start < 0 || length >= this.size() - start)
 			throw new IndexOutOfBoundsException(
 					(start < 0) ? "negative first argument to delete" : "delete range extends past end of string");
-		EditTree t2 = this.split(start);
-		EditTree t3 = t2.split(length);
-		this.concatenate(t3);
+		// the splits and concatenate are timed as part of this delete, not on
+		// their own
+		Timing t = begin();
+		EditTree t2 = this.splitOff(start);
+		EditTree t3 = t2.splitOff(length);
+		this.append(t3);
+		changed();
+		end(t, EditTreeMetrics.Operation.DELETE, start, length, t2.levels);
 		return t2;
 	}
 
 	/**
-	 * MILESTONE 3 Don't worry if you can't do this one efficiently.
+	 * MILESTONE 3. The characters are streamed in order past a KMP matcher, so
+	 * no copy of the tree is made; the only allocation is the pattern's table.
 	 * 
 	 * @param s the string to look for
 	 * @return the position in this tree of the first occurrence of s; -1 if s does
 	 *         not occur
 	 */
 	public int find(String s) {
-		if (s.isEmpty()) {
-			return 0;
-		}
-		if (root == Node.NULL_NODE) {
-			return -1;
-		}
-		String str = this.toString();
-		int result = str.indexOf(s);
-		return result;
+		return find(s, 0);
 	}
 
 	/**
-	 * MILESTONE 3
+	 * MILESTONE 3. The search starts with a single descent to pos and stops at
+	 * the first match, so a find-next loop only reads the text between matches.
 	 * 
 	 * @param s   the string to search for
 	 * @param pos the position in the tree to begin the search
@@ -459,14 +1285,36 @@ public class EditTree {
 		if (s.isEmpty()) {
 			return 0;
 		}
-		if (root == Node.NULL_NODE) {
+		if (pos >= this.size()) {
 			return -1;
 		}
-		String str = this.toString();
-		int result = str.indexOf(s, pos);
+		pos = Math.max(pos, 0);
+		Timing t = begin();
+		MatchIterator matches = new MatchIterator(s, this.charIterator(pos), pos);
+		int result = matches.hasNext() ? matches.nextInt() : -1;
+		int read = (result < 0 ? this.size : result + s.length()) - pos;
+		end(t, EditTreeMetrics.Operation.FIND, pos, s.length(), read);
 		return result;
 	}
 
+	/**
+	 * Streams the positions of every occurrence of s, overlapping ones included,
+	 * in increasing order. Matches are found lazily as the stream is consumed,
+	 * so taking the first few of them only reads the text up to those matches.
+	 * The tree must not be modified while the stream is in use.
+	 * 
+	 * @param s the string to search for
+	 * @return the positions in this tree at which s occurs; an empty s occurs at
+	 *         every position from 0 to size()
+	 */
+	public IntStream findAll(String s) {
+		if (s.isEmpty()) {
+			return IntStream.rangeClosed(0, this.size());
+		}
+		return StreamSupport.intStream(Spliterators.spliteratorUnknownSize(new MatchIterator(s, this.charIterator(), 0),
+				Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.SORTED | Spliterator.NONNULL), false);
+	}
+
 	/**
 	 * @return the root of this tree.
 	 */
@@ -484,95 +1332,447 @@ public class EditTree {
 
 	/**
 	 * 
-	 * the inOrder iterator class
+	 * @return an inOrder iterator that returns primitive chars
+	 */
+	public CharIterator charIterator() {
+		return new InOrderCharIterator();
+	}
+
+	/**
+	 * 
+	 * @param pos position of the first character to return
+	 * @return an inOrder iterator that returns primitive chars, starting at pos.
+	 *         It is found with a single descent, in O(log N).
+	 * @throws IndexOutOfBoundsException if pos is negative or greater than size()
+	 */
+	public CharIterator charIterator(int pos) throws IndexOutOfBoundsException {
+		if (pos < 0 || pos > this.size()) {
+			throw new IndexOutOfBoundsException();
+		}
+		return new InOrderCharIterator(pos);
+	}
+
+	/**
+	 * Streams the characters of this tree in order. The stream knows its exact
+	 * size and splits along subtrees, so parallel() spreads whole-document work
+	 * such as histograms or checksums across cores; each piece is then read
+	 * with a primitive iterator. The tree must not be modified while the stream
+	 * is in use.
+	 * 
+	 * @return the characters of this tree
+	 */
+	public IntStream chars() {
+		return StreamSupport.intStream(new CharSpliterator(this, this::splitPoint), false);
+	}
+
+	/**
+	 * Picks where to split the positions from..to-1 between two parallel tasks:
+	 * the position of the highest node strictly inside that range, so that each
+	 * side is read from the top of a subtree.
+	 * 
+	 * @param from
+	 * @param to
+	 * @return a position between from+1 and to-1, or -1 if there is none
+	 */
+	int splitPoint(int from, int to) {
+		Node n = this.root;
+		int offset = 0;
+		while (n != Node.NULL_NODE) {
+			int at = offset + n.rank;
+			if (at <= from) {
+				offset = at + 1;
+				n = n.right;
+			} else if (at >= to) {
+				n = n.left;
+			} else {
+				return at;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param pos the cursor's starting position
+	 * @return a cursor at pos, for reading and editing around one place
+	 * @throws IndexOutOfBoundsException if pos is negative or greater than size()
+	 */
+	public Cursor cursor(int pos) throws IndexOutOfBoundsException {
+		if (pos < 0 || pos > this.size()) {
+			throw new IndexOutOfBoundsException();
+		}
+		return new Cursor(pos);
+	}
+
+	/**
+	 * Attaches an anchor to the character at pos. The anchor follows that
+	 * character through every later edit, at no cost to the edits, until the
+	 * character is deleted or split off into another tree.
+	 * 
+	 * @param pos position of the character to anchor
+	 * @return the anchor
+	 * @throws IndexOutOfBoundsException if pos is not a position in this tree
+	 */
+	public Anchor anchor(int pos) throws IndexOutOfBoundsException {
+		if (pos < 0 || pos >= this.size()) {
+			throw new IndexOutOfBoundsException();
+		}
+		claim();
+		if (this.anchors == null) {
+			this.anchors = new ArrayList<WeakReference<Anchor>>();
+			this.anchorLimit = 16;
+		} else if (this.anchors.size() >= this.anchorLimit) {
+			pruneAnchors(null, null);
+		}
+		Anchor result = new Anchor(this, ownPath(pos));
+		this.anchors.add(new WeakReference<Anchor>(result));
+		return result;
+	}
+
+	// the number of anchors this tree is keeping up to date
+	int anchorCount() {
+		return this.anchors == null ? 0 : this.anchors.size();
+	}
+
+	/**
+	 * Finds an anchor's character in O(log N) time by following parent pointers
+	 * up to the root, adding up the ranks of the nodes it is to the right of.
+	 * 
+	 * @param anchor an anchor made by this tree
+	 * @return the position of the anchored character; -1 if it has been
+	 *         deleted, split off into another tree or removed
+	 * @throws IllegalArgumentException if the anchor was made by another tree
+	 */
+	public int positionOf(Anchor anchor) throws IllegalArgumentException {
+		if (anchor.tree != this) {
+			throw new IllegalArgumentException("the anchor belongs to another tree");
+		}
+		Node n = anchor.node;
+		if (n == null) {
+			return -1;
+		}
+		int pos = n.rank;
+		while (n != this.root) {
+			Node parent = n.parent;
+			if (parent == null) {
+				return -1;
+			} else if (parent.right == n) {
+				pos += parent.rank + 1;
+			} else if (parent.left != n) {
+				// n has been unlinked, so the character is gone
+				return -1;
+			}
+			n = parent;
+		}
+		return pos;
+	}
+
+	/**
+	 * Stops tracking an anchor; its position is -1 from then on. Anchors cost
+	 * nothing on edits, but the first edit after a snapshot copies the paths
+	 * to all of them. An anchor is forgotten on its own once nothing else
+	 * holds it, or once its character is gone and the tree next prunes its
+	 * anchors.
+	 * 
+	 * @param anchor an anchor made by this tree
+	 * @throws IllegalArgumentException if the anchor was made by another tree
+	 */
+	public void removeAnchor(Anchor anchor) throws IllegalArgumentException {
+		if (anchor.tree != this) {
+			throw new IllegalArgumentException("the anchor belongs to another tree");
+		}
+		if (anchor.node != null) {
+			anchor.node = null;
+			for (int i = 0; i < this.anchors.size(); i++) {
+				if (this.anchors.get(i).get() == anchor) {
+					this.anchors.remove(i);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * the inOrder iterator class. It boxes the chars of a CharIterator;
+	 * Character.valueOf caches the ASCII range, so most text iterates without
+	 * allocating.
 	 *
 	 */
 	public class InOrderIterator implements Iterator<Character> {
-		Stack<Node> s;
-		boolean canRemove;
-		Node node;
-		Character element;
-		int treeSize;
+		private CharIterator chars;
 
 		public InOrderIterator() {
-			s = new Stack<Node>();
-			node = root;
-			canRemove = false;
-			element = node.element;
-			treeSize = size();
-			while (this.node != Node.NULL_NODE) {
-				s.push(this.node);
-				this.node = this.node.left;
-			}
+			chars = charIterator();
 		}
 
 		@Override
 		public boolean hasNext() {
-			return !s.isEmpty();
+			return chars.hasNext();
+		}
+
+		@Override
+		public Character next() {
+			return Character.valueOf(chars.nextChar());
+		}
+	}
+
+	/**
+	 * 
+	 * the primitive inOrder iterator. The path from the root is kept in an array
+	 * sized from the AVL height bound, so no stack object has to grow.
+	 *
+	 */
+	public class InOrderCharIterator implements CharIterator {
+		private Node[] stack;
+		private int top;
+		private int treeSize;
+
+		public InOrderCharIterator() {
+			stack = new Node[maxHeight(size) + 1];
+			top = 0;
+			treeSize = size;
+			pushLeft(root);
+		}
+
+		public InOrderCharIterator(int pos) {
+			stack = new Node[maxHeight(size) + 1];
+			top = 0;
+			treeSize = size;
+			// only the nodes at or after pos on the search path still need to
+			// be visited
+			Node node = root;
+			while (node != Node.NULL_NODE) {
+				if (pos > node.rank) {
+					pos -= node.rank + 1;
+					node = node.right;
+				} else {
+					stack[top++] = node;
+					node = pos == node.rank ? Node.NULL_NODE : node.left;
+				}
+			}
 		}
 
-		public void remove() {
-			if (!canRemove)
-				throw new IllegalStateException();
-			MyWrapper b = new MyWrapper();
-			if (b.node != Node.NULL_NODE)
-				s.push(b.node);
-			canRemove = false;
+		// push node and its chain of left children
+		private void pushLeft(Node node) {
+			while (node != Node.NULL_NODE) {
+				stack[top++] = node;
+				node = node.left;
+			}
 		}
 
 		@Override
-		public Character next() {
-			if (treeSize != size()) {
+		public boolean hasNext() {
+			return top > 0;
+		}
+
+		@Override
+		public char nextChar() {
+			if (treeSize != size) {
 				throw new ConcurrentModificationException();
 			}
-			if (s.isEmpty()) {
+			if (top == 0) {
 				throw new NoSuchElementException();
 			}
-			node = s.pop();
-			element = node.element;
-			canRemove = true;
-			if (node.right != Node.NULL_NODE) {
-				node = node.right;
-				while (node != Node.NULL_NODE) {
-					s.push(node);
-					node = node.left;
+			Node node = stack[--top];
+			pushLeft(node.right);
+			return node.element;
+		}
+	}
+
+	/**
+	 * 
+	 * a position between two characters of this tree (or at either end) that
+	 * remembers the path from the root to the character after it, along with the
+	 * range of positions under each node on that path. Reading that character is
+	 * O(1), and moving by k climbs only until the path reaches a subtree that
+	 * holds the new position, which is O(log k) amortized over a run of small
+	 * moves. Edits go through the tree, so they cost O(log N) like any other;
+	 * the ranks on the path to the root have to change.
+	 * 
+	 * Any edit to the tree, through this cursor or otherwise, makes the path
+	 * stale; the cursor notices and finds its position again from the root
+	 * before its next use. It keeps its offset, not its place in the text, and
+	 * moves back to size() if the tree has shrunk below it.
+	 *
+	 */
+	public class Cursor {
+		private final Node[] path = new Node[MAX_PATH];
+		private final int[] from = new int[MAX_PATH]; // position of the first character under path[i]
+		private final int[] to = new int[MAX_PATH]; // one past the last character under path[i]
+		private int depth; // path[depth - 1] holds the character at pos, or the last one if pos == size
+		private int pos;
+		private int expectedModCount;
+
+		private Cursor(int pos) {
+			this.expectedModCount = modCount;
+			seek(pos);
+		}
+
+		/**
+		 * @return the number of characters before this cursor
+		 */
+		public int position() {
+			refresh();
+			return this.pos;
+		}
+
+		/**
+		 * @return the character just after this cursor
+		 * @throws IndexOutOfBoundsException if this cursor is at the end of the
+		 *                                   tree
+		 */
+		public char charAt() throws IndexOutOfBoundsException {
+			refresh();
+			if (this.pos == size) {
+				throw new IndexOutOfBoundsException();
+			}
+			return this.path[this.depth - 1].element;
+		}
+
+		/**
+		 * Moves this cursor k characters forward, or back if k is negative.
+		 * 
+		 * @param k
+		 * @throws IndexOutOfBoundsException if that would move it off either end
+		 *                                   of the tree; the cursor stays put
+		 */
+		public void moveBy(int k) throws IndexOutOfBoundsException {
+			refresh();
+			long target = (long) this.pos + k;
+			if (target < 0 || target > size) {
+				throw new IndexOutOfBoundsException();
+			}
+			seek((int) target);
+		}
+
+		/**
+		 * Adds ch at this cursor, which ends up just after it.
+		 * 
+		 * @param ch character to add
+		 */
+		public void insert(char ch) {
+			refresh();
+			EditTree.this.add(ch, this.pos);
+			this.pos++;
+		}
+
+		/**
+		 * Deletes the character just before this cursor.
+		 * 
+		 * @return the character that is deleted
+		 * @throws IndexOutOfBoundsException if this cursor is at the start of the
+		 *                                   tree
+		 */
+		public char deleteBackward() throws IndexOutOfBoundsException {
+			refresh();
+			if (this.pos == 0) {
+				throw new IndexOutOfBoundsException();
+			}
+			char result = EditTree.this.delete(this.pos - 1);
+			this.pos--;
+			return result;
+		}
+
+		// finds pos again from the root if the tree has been edited since the
+		// path was made
+		private void refresh() {
+			if (this.expectedModCount != modCount) {
+				this.expectedModCount = modCount;
+				this.depth = 0;
+				seek(Math.min(this.pos, size));
+			}
+		}
+
+		// moves to target, keeping the part of the path whose subtrees hold it
+		private void seek(int target) {
+			this.pos = target;
+			if (size == 0) {
+				this.depth = 0;
+				return;
+			}
+			int index = Math.min(target, size - 1);
+			while (this.depth > 0 && (index < this.from[this.depth - 1] || index >= this.to[this.depth - 1])) {
+				this.depth--;
+			}
+			Node n;
+			int first, last;
+			if (this.depth == 0) {
+				n = root;
+				first = 0;
+				last = size;
+			} else {
+				// descend again from the lowest node that still holds index
+				this.depth--;
+				n = this.path[this.depth];
+				first = this.from[this.depth];
+				last = this.to[this.depth];
+			}
+			while (true) {
+				this.path[this.depth] = n;
+				this.from[this.depth] = first;
+				this.to[this.depth] = last;
+				this.depth++;
+				int at = first + n.rank;
+				if (index < at) {
+					last = at;
+					n = n.left;
+				} else if (index > at) {
+					first = at + 1;
+					n = n.right;
+				} else {
+					return;
 				}
 			}
-			return element;
 		}
 	}
 
 	/**
-	 * inner class holds multiple fields which are useful for add, delete and
-	 * concatenate
 	 * 
+	 * a mark on one character of a tree, such as a bookmark or the end of a
+	 * selection. It holds the character's node; nodes keep their characters
+	 * through rotations, splits and joins, so the mark follows its character
+	 * without being updated. See positionOf.
+	 *
 	 */
-	public class MyWrapper {
-		public int rotationCount = 0;
-		public boolean neededUpdate = true, // true if needed update balance code
-				neededRotation = false, // true if needed rotation
-				doubleRotation = false, // true if a double rotation should take place
-				specialCase = false, // true if is a special deletion case
-				direction;
-		public char gcDirection = ' ', // the position of the grand child(left or right).
-										// useful for handling double rotation
-				replaceBy; // the node which should replace the one that has been deleted
-		private Node node = Node.NULL_NODE;
+	public static class Anchor {
+		private final EditTree tree;
+		private Node node; // null once the anchor is removed
 
-		public void setFalse() {
-			neededUpdate = false;
+		private Anchor(EditTree tree, Node node) {
+			this.tree = tree;
+			this.node = node;
 		}
+	}
 
-		public void setTrue() {
-			neededUpdate = true;
+	/**
+	 * 
+	 * @param nodes
+	 * @return the largest height that a height-balanced tree with the given
+	 *         number of nodes can have
+	 */
+	static int maxHeight(int nodes) {
+		// the sparsest AVL tree of height h has F(h+3) - 1 nodes
+		int height = -1;
+		int maxNodes = 1;
+		int prevMaxNodes = 0;
+		while (nodes >= maxNodes) {
+			int temp = prevMaxNodes;
+			prevMaxNodes = maxNodes;
+			maxNodes = temp + maxNodes + 1;
+			height++;
 		}
+		return height;
+	}
 
-		public boolean neededUpdate() {
-			return neededUpdate;
+	// methods below are for the visualizer's use
+
+	// called once an edit is done, so an open visualizer shows the result
+	private void changed() {
+		if (this.display != null) {
+			this.display.treeChanged();
 		}
 	}
 
-	// methods below are for the visualizer's use
 	public int slowSize() {
 		return this.root.slowSize();
 	}
@@ -581,6 +1781,14 @@ public class EditTree {
 		return this.root.slowHeight();
 	}
 
+	/**
+	 * Opens a window that shows this tree, or brings it to the front. While the
+	 * window is visible it shows each edit once the edit is done, by taking a
+	 * snapshot of the tree after every edit. Since the window's snapshot
+	 * shares the tree's nodes, each edit copies the nodes on its path, O(log
+	 * N) of them, where it would otherwise change them in place. Closing the
+	 * window stops the snapshots.
+	 */
 	public void show() {
 		if (this.display == null) {
 			this.display = new DisplayableBinaryTree(this, 960, 1080, true);
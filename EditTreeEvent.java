@@ -0,0 +1,55 @@
+package editortrees;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+// A JDK Flight Recorder event for an EditTree or ChunkedEditTree operation
+// that took longer than the threshold, 10 ms unless a recording's settings say
+// otherwise. The trees only create events while a recording has this event
+// enabled, and only refer to this class if the JVM has the jdk.jfr API (Java 8
+// since update 262, and Java 11 on), so they still run on JVMs without it.
+
+@Name("editortrees.Operation")
+@Label("Edit Tree Operation")
+@Category("Editor Trees")
+@Description("An EditTree operation that took longer than the threshold")
+@Threshold("10 ms")
+class EditTreeEvent extends Event {
+
+	private static final EventType TYPE = EventType.getEventType(EditTreeEvent.class);
+
+	@Label("Operation")
+	String operation;
+
+	@Label("Tree Size")
+	@Description("Characters in the tree after the operation")
+	int size;
+
+	@Label("Position")
+	int position;
+
+	@Label("Length")
+	@Description("Characters added, removed, read or searched for")
+	int length;
+
+	@Label("Rotations")
+	@Description("Rotations done by the operation; a double rotation counts as two")
+	long rotations;
+
+	@Label("Nodes Touched")
+	@Description("Nodes visited by the operation; the chunks, in a ChunkedEditTree")
+	long nodesTouched;
+
+	/**
+	 * @return whether some recording takes these events, so they are worth
+	 *         creating
+	 */
+	static boolean isRecorded() {
+		return TYPE.isEnabled();
+	}
+}
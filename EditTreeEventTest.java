@@ -0,0 +1,139 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Tests for {@link editortrees.EditTreeEvent}.
+ */
+public class EditTreeEventTest {
+
+	// the EditTreeEvents that edits commit while recorded with the threshold
+	private static List<RecordedEvent> record(Duration threshold, Runnable edits) throws IOException {
+		Path file = Files.createTempFile("edittree", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable(EditTreeEvent.class).withThreshold(threshold);
+			recording.start();
+			edits.run();
+			recording.stop();
+			recording.dump(file);
+			List<RecordedEvent> result = new ArrayList<RecordedEvent>();
+			for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+				if (event.getEventType().getName().equals("editortrees.Operation")) {
+					result.add(event);
+				}
+			}
+			return result;
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testEvents() throws IOException {
+		int[] rotations = new int[1];
+		List<RecordedEvent> events = record(Duration.ZERO, () -> {
+			EditTree t = new EditTree("hello world");
+			t.add('!');
+			t.add('a');
+			rotations[0] = t.totalRotationCount();
+			assertEquals(6, t.find("world"));
+			assertEquals("hello ", t.delete(0, 6).toString());
+		});
+		// the splits and concatenate inside delete(start, length) are not
+		// reported on their own
+		assertEquals(5, events.size());
+		String[] operations = { "BUILD", "ADD", "ADD", "FIND", "DELETE" };
+		for (int i = 0; i < operations.length; i++) {
+			assertEquals(operations[i], events.get(i).getString("operation"));
+		}
+		RecordedEvent build = events.get(0);
+		assertEquals(11, build.getInt("size"));
+		assertEquals(11, build.getInt("length"));
+		assertEquals(rotations[0], events.get(1).getLong("rotations") + events.get(2).getLong("rotations"));
+		assertEquals(12, events.get(2).getInt("position"));
+		RecordedEvent find = events.get(3);
+		assertEquals(0, find.getInt("position"));
+		assertEquals(5, find.getInt("length"));
+		assertEquals(11, find.getLong("nodesTouched"));
+		RecordedEvent delete = events.get(4);
+		assertEquals(7, delete.getInt("size"));
+		assertEquals(0, delete.getInt("position"));
+		assertEquals(6, delete.getInt("length"));
+		assertTrue(delete.getLong("nodesTouched") > 0);
+	}
+
+	@Test
+	public void testChunkedEvents() throws IOException {
+		List<RecordedEvent> events = record(Duration.ZERO, () -> {
+			ChunkedEditTree t = new ChunkedEditTree("hello world", 4);
+			t.add('!');
+			assertEquals(6, t.find("world"));
+			assertEquals("ello", t.get(1, 4));
+			assertEquals("hello ", t.delete(0, 6).toString());
+			assertEquals("world!", t.toString());
+		});
+		assertEquals(5, events.size());
+		String[] operations = { "BUILD", "ADD", "FIND", "GET", "DELETE" };
+		for (int i = 0; i < operations.length; i++) {
+			assertEquals(operations[i], events.get(i).getString("operation"));
+		}
+		// the nodes of a chunked tree are its chunks
+		RecordedEvent build = events.get(0);
+		assertEquals(11, build.getInt("size"));
+		assertEquals(3, build.getLong("nodesTouched"));
+		assertEquals(11, events.get(2).getLong("nodesTouched"));
+		RecordedEvent delete = events.get(4);
+		assertEquals(6, delete.getInt("size"));
+		assertEquals(6, delete.getInt("length"));
+		assertTrue(delete.getLong("nodesTouched") > 0);
+	}
+
+	@Test
+	public void testSnapshotReadOnManyThreads() throws IOException {
+		int reads = 20000;
+		Thread[] readers = new Thread[8];
+		List<RecordedEvent> events = record(Duration.ZERO, () -> {
+			EditTree snap = new EditTree("hello world").snapshot();
+			for (int i = 0; i < readers.length; i++) {
+				readers[i] = new Thread(() -> {
+					for (int j = 0; j < reads; j++) {
+						snap.get(j % 11);
+					}
+				});
+				readers[i].start();
+			}
+			try {
+				for (Thread reader : readers) {
+					reader.join();
+				}
+			} catch (InterruptedException e) {
+				throw new AssertionError(e);
+			}
+		});
+		// the BUILD, then one event per read
+		assertEquals(1 + readers.length * reads, events.size());
+	}
+
+	@Test
+	public void testThreshold() throws IOException {
+		List<RecordedEvent> events = record(Duration.ofDays(1), () -> {
+			EditTree t = new EditTree("hello");
+			t.add('!');
+		});
+		assertEquals(0, events.size());
+	}
+}
@@ -0,0 +1,258 @@
+package editortrees;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+// Saves and loads EditTrees in a compact binary format. All numbers are
+// big-endian:
+//
+//   header   int magic ("EDTR"), short version, short flags, int size,
+//            int height of the saved tree
+//   blocks   int chars, int bytes, then the payload: up to BLOCK_CHARS
+//            characters in UTF-16 (2 bytes each) or UTF-8
+//   end      a block with 0 chars and 0 bytes
+//   checksum int CRC-32 of every payload byte, if the flags ask for one
+//
+// Saving reads the tree one block at a time with a bulk get() straight into
+// the block's buffer, and writes each block header and payload with one
+// gathering write. Loading decodes one block at a time and appends it to the
+// tree with add(CharSequence, pos), which builds the block's nodes and joins
+// them on in O(k + log N). Neither side ever holds the whole text.
+
+public class EditTreeFormat {
+
+	public static final int MAGIC = 0x45445452;
+	public static final short VERSION = 1;
+	public static final int BLOCK_CHARS = 1 << 16;
+
+	private static final short UTF_8 = 1; // payload is UTF-8 rather than UTF-16
+	private static final short CHECKSUM = 2; // a CRC-32 follows the end block
+
+	/**
+	 * how the characters of a saved tree are encoded
+	 */
+	public enum Encoding {
+		/**
+		 * two bytes per character; any text can be saved
+		 */
+		UTF_16,
+		/**
+		 * smaller for mostly-ASCII text, but a tree holding an unpaired
+		 * surrogate cannot be saved this way
+		 */
+		UTF_8
+	}
+
+	private EditTreeFormat() {
+	}
+
+	/**
+	 * Saves tree to file, replacing anything already there.
+	 *
+	 * @param tree
+	 * @param file
+	 * @param encoding
+	 * @param checksum whether to add a CRC-32 of the payload
+	 * @throws IOException if writing fails, or if the encoding is UTF-8 and the
+	 *                     tree holds an unpaired surrogate
+	 */
+	public static void save(EditTree tree, Path file, Encoding encoding, boolean checksum) throws IOException {
+		try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			write(tree, out, encoding, checksum);
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return a new tree holding the text saved in file
+	 * @throws IOException if reading fails or file is not a valid saved tree
+	 */
+	public static EditTree load(Path file) throws IOException {
+		EditTree result = new EditTree();
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			read(in, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Writes tree to out in this format, in O(N) time.
+	 *
+	 * @param tree
+	 * @param out
+	 * @param encoding
+	 * @param checksum whether to add a CRC-32 of the payload
+	 * @throws IOException if writing fails, or if the encoding is UTF-8 and the
+	 *                     tree holds an unpaired surrogate
+	 */
+	public static void write(EditTree tree, GatheringByteChannel out, Encoding encoding, boolean checksum)
+			throws IOException {
+		boolean utf8 = encoding == Encoding.UTF_8;
+		int size = tree.size();
+		ByteBuffer header = ByteBuffer.allocate(16);
+		header.putInt(MAGIC).putShort(VERSION).putShort((short) ((utf8 ? UTF_8 : 0) | (checksum ? CHECKSUM : 0)));
+		header.putInt(size).putInt(tree.height());
+		header.flip();
+		writeFully(out, header);
+
+		ByteBuffer blockHeader = ByteBuffer.allocate(8);
+		ByteBuffer payload = ByteBuffer.allocate(utf8 ? 3 * BLOCK_CHARS : 2 * BLOCK_CHARS);
+		CharBuffer chars = utf8 ? CharBuffer.allocate(BLOCK_CHARS) : payload.asCharBuffer();
+		CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+		CRC32 crc = checksum ? new CRC32() : null;
+		ByteBuffer[] block = { blockHeader, payload };
+		int pos = 0;
+		while (pos < size) {
+			int count = Math.min(BLOCK_CHARS, size - pos);
+			chars.clear();
+			tree.get(pos, count, chars);
+			payload.clear();
+			if (utf8) {
+				// a surrogate pair is never split between blocks
+				if (pos + count < size && Character.isHighSurrogate(chars.get(count - 1))) {
+					count--;
+					chars.position(count);
+				}
+				chars.flip();
+				encoder.reset();
+				check(encoder.encode(chars, payload, true));
+				check(encoder.flush(payload));
+				payload.flip();
+			} else {
+				payload.limit(2 * count);
+			}
+			if (crc != null) {
+				crc.update(payload.array(), payload.arrayOffset(), payload.limit());
+			}
+			blockHeader.clear();
+			blockHeader.putInt(count).putInt(payload.limit());
+			blockHeader.flip();
+			writeFully(out, block);
+			pos += count;
+		}
+		ByteBuffer end = ByteBuffer.allocate(12);
+		end.putInt(0).putInt(0);
+		if (crc != null) {
+			end.putInt((int) crc.getValue());
+		}
+		end.flip();
+		writeFully(out, end);
+	}
+
+	/**
+	 * Reads a tree written by write() from in and appends its text to tree, in
+	 * O(N) time. Any kind of tree may be loaded into; its shape is its own, not
+	 * the saved one's. If the input turns out to be corrupt, tree may already
+	 * hold part of it.
+	 *
+	 * @param in
+	 * @param tree
+	 * @throws IOException if reading fails or in does not hold a valid saved
+	 *                     tree
+	 */
+	public static void read(ReadableByteChannel in, EditBuffer<?> tree) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(16);
+		readFully(in, header);
+		if (header.getInt() != MAGIC) {
+			throw new IOException("not a saved EditTree");
+		}
+		short version = header.getShort();
+		if (version != VERSION) {
+			throw new IOException("unsupported version " + version);
+		}
+		short flags = header.getShort();
+		boolean utf8 = (flags & UTF_8) != 0;
+		int size = header.getInt();
+
+		ByteBuffer blockHeader = ByteBuffer.allocate(8);
+		ByteBuffer payload = ByteBuffer.allocate(utf8 ? 3 * BLOCK_CHARS : 2 * BLOCK_CHARS);
+		CharBuffer chars = CharBuffer.allocate(BLOCK_CHARS);
+		CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+		CRC32 crc = (flags & CHECKSUM) != 0 ? new CRC32() : null;
+		int read = 0;
+		while (true) {
+			blockHeader.clear();
+			readFully(in, blockHeader);
+			int count = blockHeader.getInt();
+			int bytes = blockHeader.getInt();
+			if (count == 0) {
+				break;
+			} else if (count < 0 || count > BLOCK_CHARS || count > size - read || bytes < 0
+					|| bytes > payload.capacity() || !utf8 && bytes != 2 * count) {
+				throw new IOException("corrupt block");
+			}
+			payload.clear();
+			payload.limit(bytes);
+			readFully(in, payload);
+			if (crc != null) {
+				crc.update(payload.array(), payload.arrayOffset(), bytes);
+			}
+			chars.clear();
+			if (utf8) {
+				decoder.reset();
+				check(decoder.decode(payload, chars, true));
+				check(decoder.flush(chars));
+				chars.flip();
+			} else {
+				chars.put(payload.asCharBuffer());
+				chars.flip();
+			}
+			if (chars.remaining() != count) {
+				throw new IOException("corrupt block");
+			}
+			tree.add(chars, tree.size());
+			read += count;
+		}
+		if (read != size) {
+			throw new IOException("expected " + size + " characters but found " + read);
+		}
+		if (crc != null) {
+			ByteBuffer stored = ByteBuffer.allocate(4);
+			readFully(in, stored);
+			if (stored.getInt() != (int) crc.getValue()) {
+				throw new IOException("checksum mismatch");
+			}
+		}
+	}
+
+	private static void check(CoderResult result) throws CharacterCodingException {
+		if (result.isError()) {
+			result.throwException();
+		}
+	}
+
+	private static void writeFully(GatheringByteChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+
+	private static void writeFully(GatheringByteChannel out, ByteBuffer[] buffers) throws IOException {
+		while (buffers[buffers.length - 1].hasRemaining()) {
+			out.write(buffers);
+		}
+	}
+
+	// fills buffer from in and flips it for reading
+	private static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer) < 0) {
+				throw new IOException("unexpected end of input");
+			}
+		}
+		buffer.flip();
+	}
+}
@@ -0,0 +1,116 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link editortrees.EditTreeFormat}.
+ */
+public class EditTreeFormatTest {
+
+	private static String randomText(int length, Random rand) {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < length) {
+			int kind = rand.nextInt(40);
+			if (kind == 0) {
+				sb.append('\n');
+			} else if (kind == 1) {
+				sb.append('\u00e9');
+			} else if (kind == 2) {
+				sb.append("\ud83d\ude00"); // a surrogate pair
+			} else {
+				sb.append((char) ('a' + rand.nextInt(26)));
+			}
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Random rand = new Random(230);
+		String[] texts = { "", "the quick brown fox", randomText(3 * EditTreeFormat.BLOCK_CHARS + 17, rand) };
+		Path file = Files.createTempFile("tree", ".bin");
+		try {
+			for (String text : texts) {
+				for (EditTreeFormat.Encoding encoding : EditTreeFormat.Encoding.values()) {
+					for (boolean checksum : new boolean[] { false, true }) {
+						EditTreeFormat.save(new EditTree(text), file, encoding, checksum);
+						EditTree t = EditTreeFormat.load(file);
+						assertEquals(text, t.toString());
+
+						ChunkedEditTree chunked = new ChunkedEditTree("prefix:", 16);
+						try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+							EditTreeFormat.read(in, chunked);
+						}
+						assertEquals("prefix:" + text, chunked.toString());
+					}
+				}
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testUnpairedSurrogateNeedsUtf16() throws IOException {
+		Path file = Files.createTempFile("tree", ".bin");
+		try {
+			EditTree t = new EditTree("ab\ud83dcd");
+			try {
+				EditTreeFormat.save(t, file, EditTreeFormat.Encoding.UTF_8, false);
+				fail("Did not throw CharacterCodingException");
+			} catch (CharacterCodingException e) {
+				// success
+			}
+			EditTreeFormat.save(t, file, EditTreeFormat.Encoding.UTF_16, false);
+			assertEquals("ab\ud83dcd", EditTreeFormat.load(file).toString());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testCorruptInput() throws IOException {
+		Path file = Files.createTempFile("tree", ".bin");
+		try {
+			EditTreeFormat.save(new EditTree("the quick brown fox"), file, EditTreeFormat.Encoding.UTF_8, true);
+			byte[] bytes = Files.readAllBytes(file);
+
+			// a flipped payload bit is caught by the checksum
+			bytes[30] ^= 1;
+			Files.write(file, bytes);
+			expectIOException(file);
+
+			// so is a file cut short
+			bytes[30] ^= 1;
+			Files.write(file, Arrays.copyOf(bytes, bytes.length - 6));
+			expectIOException(file);
+
+			Files.write(file, ByteBuffer.allocate(16).putInt(12345).array());
+			expectIOException(file);
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	private static void expectIOException(Path file) {
+		try {
+			EditTreeFormat.load(file);
+			fail("Did not throw IOException");
+		} catch (IOException e) {
+			// success
+		}
+	}
+}
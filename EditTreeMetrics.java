@@ -0,0 +1,225 @@
+package editortrees;
+
+import java.util.EnumMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts and times the operations of the EditTrees and ChunkedEditTrees it is
+// attached to with setMetrics. For each operation it keeps how many calls there were,
+// how many nodes they visited, how many single and double rotations they did,
+// and a histogram of their latencies. A tree without metrics pays a null check
+// per operation; the rotation counts it keeps anyway cost nothing more.
+//
+// What counts as a visited node depends on the operation: the nodes on the
+// path for add(ch, pos), delete(pos) and get(pos); the levels split and joined
+// through for split, concatenate, add(s, pos) and delete(start, length); the
+// characters copied for get(pos, length); and the characters read for find.
+// In a ChunkedEditTree the nodes are its chunks, and its rotations are those
+// of the tree of chunks.
+//
+// All counters are safe to update from many threads, so one EditTreeMetrics
+// may be shared by many trees, and by snapshots read on other threads.
+
+public class EditTreeMetrics {
+
+	/**
+	 * the operations that are counted and timed. BUILD, building a tree from
+	 * text, is only reported to Flight Recorder, since a tree can only be given
+	 * metrics once it is built.
+	 */
+	public enum Operation {
+		ADD, DELETE, GET, FIND, SPLIT, CONCATENATE, BUILD
+	}
+
+	private final EnumMap<Operation, Stats> stats;
+
+	/**
+	 * the counters of one operation
+	 */
+	private static class Stats {
+		final LongAdder nodes = new LongAdder();
+		final LongAdder singleRotations = new LongAdder();
+		final LongAdder doubleRotations = new LongAdder();
+		final Histogram latency = new Histogram();
+	}
+
+	/**
+	 * Construct metrics with every count at zero
+	 */
+	public EditTreeMetrics() {
+		this.stats = new EnumMap<Operation, Stats>(Operation.class);
+		for (Operation op : Operation.values()) {
+			this.stats.put(op, new Stats());
+		}
+	}
+
+	/**
+	 * Records one call.
+	 *
+	 * @param op
+	 * @param nanos           how long it took
+	 * @param nodes           how many nodes it visited
+	 * @param singleRotations
+	 * @param doubleRotations
+	 */
+	void record(Operation op, long nanos, long nodes, long singleRotations, long doubleRotations) {
+		Stats s = this.stats.get(op);
+		s.latency.record(nanos);
+		s.nodes.add(nodes);
+		if (singleRotations != 0) {
+			s.singleRotations.add(singleRotations);
+		}
+		if (doubleRotations != 0) {
+			s.doubleRotations.add(doubleRotations);
+		}
+	}
+
+	/**
+	 * @param op
+	 * @return the number of calls to op
+	 */
+	public long count(Operation op) {
+		return this.stats.get(op).latency.count();
+	}
+
+	/**
+	 * @param op
+	 * @return the total number of nodes that calls to op visited
+	 */
+	public long nodesVisited(Operation op) {
+		return this.stats.get(op).nodes.sum();
+	}
+
+	/**
+	 * @param op
+	 * @return the number of single rotations that calls to op did
+	 */
+	public long singleRotations(Operation op) {
+		return this.stats.get(op).singleRotations.sum();
+	}
+
+	/**
+	 * @param op
+	 * @return the number of double rotations that calls to op did
+	 */
+	public long doubleRotations(Operation op) {
+		return this.stats.get(op).doubleRotations.sum();
+	}
+
+	/**
+	 * @param op
+	 * @return the latencies of calls to op, in nanoseconds
+	 */
+	public Histogram latency(Operation op) {
+		return this.stats.get(op).latency;
+	}
+
+	/**
+	 * @return a table with a row of counts and latencies per operation
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-12s %10s %12s %10s %10s %10s %10s %10s%n", "operation", "count", "nodes",
+				"single", "double", "p50 ns", "p99 ns", "max ns"));
+		for (Operation op : Operation.values()) {
+			Stats s = this.stats.get(op);
+			sb.append(String.format("%-12s %10d %12d %10d %10d %10d %10d %10d%n", op, s.latency.count(),
+					s.nodes.sum(), s.singleRotations.sum(), s.doubleRotations.sum(), s.latency.percentile(50),
+					s.latency.percentile(99), s.latency.max()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A histogram of non-negative values in the style of HdrHistogram: below
+	 * 32, every value has a bucket of its own; above, each power of two is cut
+	 * into 16 buckets, so a value is known to within 1/16 of itself. It takes
+	 * 960 buckets to cover every long.
+	 */
+	public static class Histogram {
+
+		private static final int SUB_BITS = 4;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder total = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		/**
+		 * @param value to add; negative values count as 0
+		 */
+		public void record(long value) {
+			value = Math.max(value, 0);
+			this.buckets.incrementAndGet(bucketOf(value));
+			this.count.increment();
+			this.total.add(value);
+			this.max.accumulate(value);
+		}
+
+		/**
+		 * @return the number of values recorded
+		 */
+		public long count() {
+			return this.count.sum();
+		}
+
+		/**
+		 * @return the largest value recorded, or 0 if there are none
+		 */
+		public long max() {
+			return this.max.get();
+		}
+
+		/**
+		 * @return the mean of the values recorded, or 0 if there are none
+		 */
+		public double mean() {
+			long n = this.count.sum();
+			return n == 0 ? 0 : (double) this.total.sum() / n;
+		}
+
+		/**
+		 * @param percent between 0 and 100
+		 * @return a value that at least percent of the recorded values are no
+		 *         larger than, to within the precision of the buckets; 0 if there
+		 *         are none
+		 */
+		public long percentile(double percent) {
+			long n = this.count.sum();
+			long rank = Math.max(1, (long) Math.ceil(percent / 100 * n));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += this.buckets.get(i);
+				if (seen >= rank) {
+					return Math.min(highestIn(i), this.max());
+				}
+			}
+			return this.max();
+		}
+
+		// values below 2 * SUB_BUCKETS are their own bucket; above that, the
+		// highest set bit picks the power of two and the SUB_BITS below it the
+		// bucket within it
+		static int bucketOf(long value) {
+			if (value < 2 * SUB_BUCKETS) {
+				return (int) value;
+			}
+			int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+			return shift * SUB_BUCKETS + (int) (value >>> shift);
+		}
+
+		// the largest value that falls in bucket i
+		static long highestIn(int i) {
+			if (i < 2 * SUB_BUCKETS) {
+				return i;
+			}
+			int shift = i / SUB_BUCKETS - 1;
+			long lowest = (long) (i % SUB_BUCKETS + SUB_BUCKETS) << shift;
+			return lowest + (1L << shift) - 1;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import editortrees.EditTreeMetrics.Histogram;
+import editortrees.EditTreeMetrics.Operation;
+
+/**
+ * Tests for {@link editortrees.EditTreeMetrics}.
+ */
+public class EditTreeMetricsTest {
+
+	@Test
+	public void testCounts() {
+		EditTree t = new EditTree();
+		assertNull(t.getMetrics());
+		EditTreeMetrics m = new EditTreeMetrics();
+		t.setMetrics(m);
+		t.add('a');
+		t.add('b');
+		t.add('c');
+		assertEquals(3, m.count(Operation.ADD));
+		assertEquals(1, m.singleRotations(Operation.ADD));
+		assertEquals(0, m.doubleRotations(Operation.ADD));
+		// the paths to the new nodes held 0, 1 and 2 nodes
+		assertEquals(3, m.nodesVisited(Operation.ADD));
+
+		t.add('x', 3);
+		t.add('m', 3);
+		assertEquals(1, m.singleRotations(Operation.ADD));
+		assertEquals(1, m.doubleRotations(Operation.ADD));
+		assertEquals(3, t.totalRotationCount());
+		assertEquals("abcmx", t.toString());
+
+		assertEquals('m', t.get(3));
+		assertEquals("bcm", t.get(1, 3));
+		assertEquals(2, m.count(Operation.GET));
+		assertEquals(3, t.find("mx"));
+		assertEquals(1, m.count(Operation.FIND));
+		assertEquals(5, m.nodesVisited(Operation.FIND));
+
+		EditTree tail = t.split(4);
+		t.concatenate(tail);
+		assertEquals('a', t.delete(0));
+		assertEquals("cm", t.delete(1, 2).toString());
+		// the split and concatenate inside delete(start, length) are not
+		// counted on their own
+		assertEquals(1, m.count(Operation.SPLIT));
+		assertEquals(1, m.count(Operation.CONCATENATE));
+		assertEquals(2, m.count(Operation.DELETE));
+		assertTrue(m.nodesVisited(Operation.SPLIT) > 0);
+		assertEquals("bx", t.toString());
+
+		// snapshots report to the same metrics
+		EditTree snap = t.snapshot();
+		snap.get(0);
+		assertEquals(3, m.count(Operation.GET));
+		t.setMetrics(null);
+		t.get(0);
+		snap.setMetrics(null);
+		snap.get(0);
+		assertEquals(3, m.count(Operation.GET));
+		for (Operation op : Operation.values()) {
+			assertTrue(m.latency(op).count() == m.count(op));
+		}
+		assertTrue(m.toString().contains("CONCATENATE"));
+	}
+
+	@Test
+	public void testChunkedCounts() {
+		ChunkedEditTree t = new ChunkedEditTree(4);
+		EditTreeMetrics m = new EditTreeMetrics();
+		t.setMetrics(m);
+		assertTrue(t.getMetrics() == m);
+		for (char c = 'a'; c <= 'j'; c++) {
+			t.add(c);
+		}
+		assertEquals(10, m.count(Operation.ADD));
+		assertEquals(t.totalRotationCount(), m.singleRotations(Operation.ADD) + 2 * m.doubleRotations(Operation.ADD));
+		assertTrue(m.nodesVisited(Operation.ADD) > 0);
+
+		// the chunks are [cd2\, ab0=, ef0\, ghij0=], so the path to 'e' holds
+		// two of them
+		assertEquals('e', t.get(4));
+		assertEquals(2, m.nodesVisited(Operation.GET));
+		assertEquals("cdef", t.get(2, 4));
+		assertEquals(2, m.count(Operation.GET));
+		assertEquals(6, m.nodesVisited(Operation.GET));
+		assertEquals(6, t.find("ghi"));
+		assertEquals(9, m.nodesVisited(Operation.FIND));
+
+		ChunkedEditTree tail = t.split(5);
+		t.concatenate(tail);
+		assertEquals('a', t.delete(0));
+		assertEquals("cd", t.delete(1, 2).toString());
+		// the split and concatenate inside delete(start, length) are not
+		// counted on their own
+		assertEquals(1, m.count(Operation.SPLIT));
+		assertEquals(1, m.count(Operation.CONCATENATE));
+		assertEquals(2, m.count(Operation.DELETE));
+		assertTrue(m.nodesVisited(Operation.SPLIT) > 0);
+		assertEquals("befghij", t.toString());
+
+		// snapshots report to the same metrics
+		t.snapshot().get(0);
+		assertEquals(3, m.count(Operation.GET));
+		t.setMetrics(null);
+		t.get(0);
+		assertEquals(3, m.count(Operation.GET));
+	}
+
+	@Test
+	public void testSnapshotReadOnManyThreads() throws InterruptedException {
+		EditTree t = new EditTree("hello world");
+		EditTreeMetrics m = new EditTreeMetrics();
+		t.setMetrics(m);
+		EditTree snap = t.snapshot();
+		int reads = 100000;
+		Thread[] readers = new Thread[8];
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new Thread(() -> {
+				for (int j = 0; j < reads; j++) {
+					snap.get(j % 11);
+					snap.find("world");
+				}
+			});
+			readers[i].start();
+		}
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		// no call is lost or mixed up with one on another thread
+		assertEquals(readers.length * reads, m.count(Operation.GET));
+		assertEquals(readers.length * reads, m.count(Operation.FIND));
+		assertEquals(readers.length * reads * 11L, m.nodesVisited(Operation.FIND));
+	}
+
+	@Test
+	public void testHistogram() {
+		Histogram h = new Histogram();
+		assertEquals(0, h.percentile(50));
+		for (int i = 1; i <= 1000; i++) {
+			h.record(i);
+		}
+		assertEquals(1000, h.count());
+		assertEquals(1000, h.max());
+		assertEquals(500.5, h.mean(), 1e-9);
+		long median = h.percentile(50);
+		assertTrue(median >= 500 && median <= 500 + 500 / 16);
+		assertEquals(1000, h.percentile(100));
+		assertEquals(1, h.percentile(0));
+
+		// every value falls in a bucket whose range holds it, and the buckets
+		// cover the longs without gaps
+		long[] values = { 0, 1, 31, 32, 33, 63, 64, 1000, 123456789, Long.MAX_VALUE - 1, Long.MAX_VALUE };
+		for (long v : values) {
+			int b = Histogram.bucketOf(v);
+			assertTrue(Histogram.highestIn(b) >= v);
+			assertTrue(b == 0 || Histogram.highestIn(b - 1) < v);
+		}
+		for (int b = 1; Histogram.highestIn(b - 1) < Long.MAX_VALUE; b++) {
+			assertEquals(b, Histogram.bucketOf(Histogram.highestIn(b - 1) + 1));
+			assertEquals(b, Histogram.bucketOf(Histogram.highestIn(b)));
+		}
+	}
+}
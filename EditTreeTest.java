@@ -0,0 +1,837 @@
+package editortrees;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+
+import org.junit.Test;
+
+/**
+ * Tests for the EditTree operations that go beyond the milestones.
+ */
+public class EditTreeTest {
+
+	@Test
+	public void testCharIterator() {
+		EditTree t = new EditTree();
+		assertFalse(t.charIterator().hasNext());
+		for (char c = 'a'; c <= 'z'; c++) {
+			t.add(c, t.size() / 2);
+		}
+		String expected = t.toString();
+		CharIterator iter = t.charIterator();
+		StringBuilder sb = new StringBuilder();
+		while (iter.hasNext()) {
+			sb.append(iter.nextChar());
+		}
+		assertEquals(expected, sb.toString());
+		try {
+			iter.nextChar();
+			fail("Did not throw NoSuchElementException");
+		} catch (NoSuchElementException e) {
+			// success
+		}
+	}
+
+	@Test
+	public void testCharIteratorDetectsModification() {
+		EditTree t = new EditTree("abc");
+		CharIterator iter = t.charIterator();
+		assertEquals('a', iter.nextChar());
+		t.add('d');
+		try {
+			iter.nextChar();
+			fail("Did not throw ConcurrentModificationException");
+		} catch (ConcurrentModificationException e) {
+			// success
+		}
+	}
+
+	@Test
+	public void testToCharArray() {
+		assertEquals(0, new EditTree().toCharArray().length);
+		EditTree t = new EditTree();
+		for (int i = 0; i < 1000; i++) {
+			t.add((char) ('a' + i % 26), i / 2);
+		}
+		char[] chars = t.toCharArray();
+		assertEquals(1000, chars.length);
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(t.get(i), chars[i]);
+		}
+		assertTrue(t.toString().equals(new String(chars)));
+	}
+
+	@Test
+	public void testChunkedCharIterator() {
+		String str = "the quick brown fox jumps over the lazy dog";
+		ChunkedEditTree t = new ChunkedEditTree(str, 4);
+		CharIterator iter = t.charIterator();
+		StringBuilder sb = new StringBuilder();
+		while (iter.hasNext()) {
+			sb.append((char) iter.nextInt());
+		}
+		assertEquals(str, sb.toString());
+		assertEquals(str, new String(t.toCharArray()));
+	}
+
+	@Test
+	public void testCharIteratorFromPosition() {
+		EditTree t = new EditTree();
+		String str = "abcdefghijklmnopqrstuvwxyz";
+		for (int i = 0; i < str.length(); i++) {
+			t.add(str.charAt(i));
+		}
+		for (int pos = 0; pos <= str.length(); pos++) {
+			CharIterator iter = t.charIterator(pos);
+			StringBuilder sb = new StringBuilder();
+			while (iter.hasNext()) {
+				sb.append(iter.nextChar());
+			}
+			assertEquals(str.substring(pos), sb.toString());
+		}
+		try {
+			t.charIterator(27);
+			fail("Did not throw IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+			// success
+		}
+	}
+
+	@Test
+	public void testGetRangeIntoArray() {
+		EditTree t = new EditTree();
+		String str = "the quick brown fox jumps over the lazy dog";
+		for (int i = 0; i < str.length(); i++) {
+			t.add(str.charAt(i), i);
+		}
+		for (int pos = 0; pos <= str.length(); pos++) {
+			for (int length = 0; pos + length <= str.length(); length++) {
+				assertEquals(str.substring(pos, pos + length), t.get(pos, length));
+			}
+		}
+		char[] dst = "**********".toCharArray();
+		t.get(4, 5, dst, 2);
+		assertEquals("**quick***", new String(dst));
+		try {
+			t.get(4, 5, dst, 6);
+			fail("Did not throw IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+			// success
+		}
+		try {
+			t.get(4, -1);
+			fail("Did not throw IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+			// success
+		}
+	}
+
+	@Test
+	public void testRangeChecksDoNotOverflow() {
+		EditBuffer<?>[] trees = { new EditTree("abcdef"), new ChunkedEditTree("abcdef", 4) };
+		char[] dst = new char[4];
+		for (EditBuffer<?> t : trees) {
+			try {
+				t.get(2, Integer.MAX_VALUE);
+				fail("Did not throw IndexOutOfBoundsException");
+			} catch (IndexOutOfBoundsException e) {
+				// success
+			}
+			try {
+				t.get(0, 1, dst, Integer.MAX_VALUE);
+				fail("Did not throw IndexOutOfBoundsException");
+			} catch (IndexOutOfBoundsException e) {
+				// success
+			}
+			try {
+				t.delete(2, Integer.MAX_VALUE);
+				fail("Did not throw IndexOutOfBoundsException");
+			} catch (IndexOutOfBoundsException e) {
+				// success
+			}
+			assertEquals("abcdef", t.toString());
+		}
+	}
+
+	@Test
+	public void testGetRangeIntoCharBuffer() {
+		String str = "the quick brown fox jumps over the lazy dog";
+		EditBuffer<?>[] trees = { new EditTree(), new ChunkedEditTree(str, 4) };
+		for (int i = 0; i < str.length(); i++) {
+			trees[0].add(str.charAt(i));
+		}
+		for (EditBuffer<?> t : trees) {
+			CharBuffer heap = CharBuffer.allocate(12);
+			heap.put('>');
+			t.get(10, 5, heap);
+			assertEquals(6, heap.position());
+			heap.flip();
+			assertEquals(">brown", heap.toString());
+
+			CharBuffer direct = ByteBuffer.allocateDirect(24).asCharBuffer();
+			t.get(16, 3, direct);
+			direct.flip();
+			assertEquals("fox", direct.toString());
+			try {
+				t.get(0, 13, CharBuffer.allocate(12));
+				fail("Did not throw BufferOverflowException");
+			} catch (BufferOverflowException e) {
+				// success
+			}
+		}
+	}
+
+	@Test
+	public void testConstructorSetsRanksAndBalanceCodes() {
+		assertEquals("[]", new EditTree("").toDebugString());
+		assertEquals("[b1=, a0=, c0=]", new EditTree("abc").toDebugString());
+		assertEquals("[c2/, b1/, a0=, d0=]", new EditTree("abcd").toDebugString());
+		assertEquals("[d3=, b1=, a0=, c0=, f1=, e0=, g0=]", new EditTree("abcdefg").toDebugString());
+		StringBuilder sb = new StringBuilder();
+		for (int n = 0; n < 200; n++) {
+			EditTree t = new EditTree(sb);
+			assertEquals(n, t.size());
+			assertEquals(32 - Integer.numberOfLeadingZeros(n) - 1, t.height());
+			for (int i = 0; i < n; i++) {
+				assertEquals(sb.charAt(i), t.get(i));
+			}
+			// further edits rely on the ranks and balance codes being right
+			t.add('!', n / 2);
+			t.add('?');
+			t.delete(0);
+			sb.insert(n / 2, '!').append('?').deleteCharAt(0);
+			assertEquals(sb.toString(), t.toString());
+			sb.setLength(n);
+			for (int i = 0; i < n; i++) {
+				sb.setCharAt(i, (char) ('a' + i % 26));
+			}
+			sb.append((char) ('a' + n % 26));
+		}
+	}
+
+	@Test
+	public void testConstructorFromOtherSources() throws IOException {
+		String str = "the quick brown fox jumps over the lazy dog";
+		assertEquals(str, new EditTree(str.toCharArray()).toString());
+		assertEquals(str, new EditTree(CharBuffer.wrap(str)).toString());
+		assertEquals(str, new EditTree(new StringReader(str)).toString());
+		StringBuilder big = new StringBuilder();
+		while (big.length() < 100000) {
+			big.append(str);
+		}
+		EditTree t = new EditTree(new StringReader(big.toString()));
+		assertEquals(big.length(), t.size());
+		assertEquals(big.toString(), t.toString());
+	}
+
+	@Test
+	public void testAddString() {
+		EditTree t = new EditTree();
+		t.add("", 0);
+		assertEquals("", t.toString());
+		t.add("fox", 0);
+		assertEquals("[o1=, f0=, x0=]", t.toDebugString());
+		t.add("quick ", 0);
+		t.add("the ", 0);
+		t.add("brown ", 10);
+		t.add(" jumps over the lazy dog", t.size());
+		t.add('!', t.size());
+		t.add("?", t.size());
+		assertEquals("the quick brown fox jumps over the lazy dog!?", t.toString());
+		assertEquals(45, t.size());
+		assertTrue(t.height() <= EditTree.maxHeight(t.size()));
+		try {
+			t.add("oops", 46);
+			fail("Did not throw IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+			// success
+		}
+	}
+
+	@Test
+	public void testAddStringRandom() {
+		Random rand = new Random(230);
+		StringBuilder expected = new StringBuilder();
+		EditTree t = new EditTree();
+		for (int i = 0; i < 500; i++) {
+			StringBuilder s = new StringBuilder();
+			int length = rand.nextInt(i % 2 == 0 ? 4 : 300);
+			for (int j = 0; j < length; j++) {
+				s.append((char) ('a' + rand.nextInt(26)));
+			}
+			int pos = rand.nextInt(expected.length() + 1);
+			t.add(s, pos);
+			expected.insert(pos, s);
+			assertEquals(expected.length(), t.size());
+			assertTrue(t.height() <= EditTree.maxHeight(t.size()));
+			// single-character edits rely on the joined ranks and balance codes
+			pos = rand.nextInt(expected.length() + 1);
+			t.add('!', pos);
+			expected.insert(pos, '!');
+		}
+		assertEquals(expected.toString(), t.toString());
+		for (int i = 0; i < expected.length(); i++) {
+			assertEquals(expected.charAt(i), t.get(i));
+		}
+	}
+
+	@Test
+	public void testFindMatchesIndexOf() {
+		Random rand = new Random(230);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			sb.append((char) ('a' + rand.nextInt(3)));
+		}
+		String str = sb.toString();
+		EditBuffer<?>[] trees = { new EditTree(str), new ChunkedEditTree(str, 8) };
+		for (EditBuffer<?> t : trees) {
+			for (int i = 0; i < 300; i++) {
+				int start = rand.nextInt(str.length());
+				String s = str.substring(start, Math.min(str.length(), start + 1 + rand.nextInt(12)));
+				if (rand.nextBoolean()) {
+					s += 'd';
+				}
+				int pos = rand.nextInt(str.length() + 2) - 1;
+				assertEquals(str.indexOf(s), t.find(s));
+				assertEquals(str.indexOf(s, pos), t.find(s, pos));
+			}
+		}
+	}
+
+	@Test
+	public void testFindAll() {
+		EditTree t = new EditTree("abracadabra");
+		assertArrayEquals(new int[] { 0, 7 }, t.findAll("abra").toArray());
+		assertArrayEquals(new int[] { 0, 3, 5, 7, 10 }, t.findAll("a").toArray());
+		assertArrayEquals(new int[0], t.findAll("abc").toArray());
+		assertArrayEquals(new int[] { 0, 1, 2, 3 }, new EditTree("abc").findAll("").toArray());
+		// overlapping matches are all reported
+		assertArrayEquals(new int[] { 0, 1, 2 }, new EditTree("aaaa").findAll("aa").toArray());
+		assertArrayEquals(new int[] { 0, 3 }, new ChunkedEditTree("abaabaab", 2).findAll("abaab").toArray());
+		assertEquals(0, new EditTree().findAll("a").count());
+		assertEquals(7, t.findAll("abra").skip(1).findFirst().getAsInt());
+	}
+
+	@Test
+	public void testRandomDeleteKeepsBalanceCodes() {
+		Random rand = new Random(230);
+		EditTree t = new EditTree();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			if (expected.length() > 0 && rand.nextInt(5) < 2) {
+				int pos = rand.nextInt(expected.length());
+				assertEquals(expected.charAt(pos), t.delete(pos));
+				expected.deleteCharAt(pos);
+			} else {
+				int pos = rand.nextInt(expected.length() + 1);
+				char c = (char) ('a' + rand.nextInt(26));
+				t.add(c, pos);
+				expected.insert(pos, c);
+			}
+			if (i % 100 == 0) {
+				assertEquals(t.height(), checkedHeight(t.getRoot()));
+			}
+		}
+		assertEquals(expected.toString(), t.toString());
+		assertEquals(t.height(), checkedHeight(t.getRoot()));
+	}
+
+	@Test
+	public void testSnapshot() {
+		EditTree t = new EditTree("the quick brown fox");
+		EditTree s = t.snapshot();
+		t.delete(4, 6);
+		t.add('!');
+		s.add("lazy ", 4);
+		assertEquals("the brown fox!", t.toString());
+		assertEquals("the lazy quick brown fox", s.toString());
+		EditTree s2 = s.snapshot();
+		s.split(8);
+		assertEquals("the lazy", s.toString());
+		assertEquals("the lazy quick brown fox", s2.toString());
+		assertEquals("the brown fox!", t.toString());
+		assertEquals(t.height(), checkedHeight(t.getRoot()));
+		assertEquals(s2.height(), checkedHeight(s2.getRoot()));
+	}
+
+	@Test
+	public void testSnapshotSharesAllButThePath() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			sb.append((char) ('a' + i % 26));
+		}
+		EditTree t = new EditTree(sb);
+		EditTree s = t.snapshot();
+		assertTrue(s.getRoot() == t.getRoot());
+		t.add('!', 5000);
+		t.delete(7000);
+		Set<Node> shared = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+		collect(s.getRoot(), shared);
+		Set<Node> copied = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+		collect(t.getRoot(), copied);
+		copied.removeAll(shared);
+		// two paths from the root, plus the nodes the rotations touched
+		assertTrue(copied.size() <= 2 * (t.height() + 1) + 4);
+		assertEquals(sb.toString(), s.toString());
+		sb.insert(5000, '!').deleteCharAt(7000);
+		assertEquals(sb.toString(), t.toString());
+	}
+
+	@Test
+	public void testRandomEditsWithSnapshots() {
+		Random rand = new Random(230);
+		EditTree t = new EditTree();
+		StringBuilder expected = new StringBuilder();
+		List<EditTree> snapshots = new ArrayList<EditTree>();
+		List<String> contents = new ArrayList<String>();
+		for (int i = 0; i < 5000; i++) {
+			int op = rand.nextInt(8);
+			if (op < 4) {
+				int pos = rand.nextInt(expected.length() + 1);
+				t.add((char) ('a' + i % 26), pos);
+				expected.insert(pos, (char) ('a' + i % 26));
+			} else if (op < 6 && expected.length() > 0) {
+				int pos = rand.nextInt(expected.length());
+				t.delete(pos);
+				expected.deleteCharAt(pos);
+			} else if (op == 6 && expected.length() > 0) {
+				// an edit to a split-off half that a snapshot shares
+				int pos = rand.nextInt(expected.length());
+				EditTree right = t.split(pos);
+				snapshots.add(right.snapshot());
+				contents.add(right.toString());
+				right.add('!', 0);
+				t.concatenate(right);
+				expected.insert(pos, '!');
+			} else if (rand.nextInt(10) == 0) {
+				snapshots.add(t.snapshot());
+				contents.add(expected.toString());
+			}
+			assertEquals(expected.length(), t.size());
+		}
+		assertEquals(expected.toString(), t.toString());
+		assertEquals(t.height(), checkedHeight(t.getRoot()));
+		for (int i = 0; i < snapshots.size(); i++) {
+			assertEquals(contents.get(i), snapshots.get(i).toString());
+			assertEquals(snapshots.get(i).height(), checkedHeight(snapshots.get(i).getRoot()));
+		}
+	}
+
+	@Test
+	public void testLines() {
+		String str = "first\nsecond line\n\nlast";
+		EditBuffer<?>[] trees = { new EditTree(str), new ChunkedEditTree(str, 4), new EditTree(), new ChunkedEditTree(3) };
+		for (int i = 0; i < str.length(); i++) {
+			trees[2].add(str.charAt(i), i);
+			trees[3].add(str.charAt(i), i);
+		}
+		for (EditBuffer<?> t : trees) {
+			assertEquals(4, t.lineCount());
+			assertEquals(0, t.lineOf(0));
+			assertEquals(0, t.lineOf(5));
+			assertEquals(1, t.lineOf(6));
+			assertEquals(2, t.lineOf(18));
+			assertEquals(3, t.lineOf(19));
+			assertEquals(3, t.lineOf(str.length()));
+			assertEquals(0, t.offsetOfLine(0));
+			assertEquals(6, t.offsetOfLine(1));
+			assertEquals(18, t.offsetOfLine(2));
+			assertEquals(19, t.offsetOfLine(3));
+			assertEquals("first", t.getLine(0));
+			assertEquals("second line", t.getLine(1));
+			assertEquals("", t.getLine(2));
+			assertEquals("last", t.getLine(3));
+			try {
+				t.offsetOfLine(4);
+				fail("Did not throw IndexOutOfBoundsException");
+			} catch (IndexOutOfBoundsException e) {
+				// success
+			}
+		}
+		assertEquals(1, new EditTree().lineCount());
+		assertEquals("", new EditTree().getLine(0));
+		assertEquals("", new EditTree("a\n").getLine(1));
+	}
+
+	@Test
+	public void testLinesAfterRandomEdits() {
+		Random rand = new Random(230);
+		EditBuffer<?>[] trees = { new EditTree(), new ChunkedEditTree(4) };
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 3000; i++) {
+			int op = rand.nextInt(10);
+			if (op < 5 || sb.length() < 2) {
+				int pos = rand.nextInt(sb.length() + 1);
+				char c = rand.nextInt(4) == 0 ? '\n' : 'x';
+				sb.insert(pos, c);
+				for (EditBuffer<?> t : trees) {
+					t.add(c, pos);
+				}
+			} else if (op < 8) {
+				int pos = rand.nextInt(sb.length());
+				sb.deleteCharAt(pos);
+				for (EditBuffer<?> t : trees) {
+					t.delete(pos);
+				}
+			} else if (op == 8) {
+				int pos = rand.nextInt(sb.length() + 1);
+				sb.insert(pos, "a\nb\n");
+				for (EditBuffer<?> t : trees) {
+					t.add("a\nb\n", pos);
+				}
+			} else {
+				int start = rand.nextInt(sb.length() - 1);
+				int length = rand.nextInt(sb.length() - start);
+				sb.delete(start, start + length);
+				for (EditBuffer<?> t : trees) {
+					t.delete(start, length);
+				}
+			}
+		}
+		String str = sb.toString();
+		String[] lines = str.split("\n", -1);
+		for (EditBuffer<?> t : trees) {
+			assertEquals(str, t.toString());
+			assertEquals(lines.length, t.lineCount());
+			int offset = 0;
+			for (int line = 0; line < lines.length; line++) {
+				assertEquals(offset, t.offsetOfLine(line));
+				assertEquals(lines[line], t.getLine(line));
+				for (int pos = offset; pos <= offset + lines[line].length(); pos++) {
+					assertEquals(line, t.lineOf(pos));
+				}
+				offset += lines[line].length() + 1;
+			}
+		}
+	}
+
+	@Test
+	public void testCursor() {
+		EditTree t = new EditTree();
+		EditTree.Cursor c = t.cursor(0);
+		for (char ch : "the fox".toCharArray()) {
+			c.insert(ch);
+		}
+		assertEquals(7, c.position());
+		c.moveBy(-3);
+		assertEquals('f', c.charAt());
+		for (char ch : "quick ".toCharArray()) {
+			c.insert(ch);
+		}
+		assertEquals("the quick fox", t.toString());
+		assertEquals('f', c.charAt());
+		assertEquals(' ', c.deleteBackward());
+		assertEquals('k', c.deleteBackward());
+		assertEquals("the quicfox", t.toString());
+		c.moveBy(-8);
+		assertEquals(0, c.position());
+		try {
+			c.deleteBackward();
+			fail("Did not throw IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+			// success
+		}
+		try {
+			c.moveBy(12);
+			fail("Did not throw IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+			// success
+		}
+		c.moveBy(11);
+		try {
+			c.charAt();
+			fail("Did not throw IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+			// success
+		}
+		// edits elsewhere leave the offset alone, except to keep it in range
+		t.delete(5, 4);
+		assertEquals("the qox", t.toString());
+		assertEquals(7, c.position());
+		c.moveBy(-1);
+		assertEquals('x', c.charAt());
+	}
+
+	@Test
+	public void testCursorsAgainstBruteForce() {
+		Random rand = new Random(230);
+		EditTree t = new EditTree();
+		StringBuilder sb = new StringBuilder();
+		EditTree.Cursor[] cursors = { t.cursor(0), t.cursor(0), t.cursor(0) };
+		int[] positions = new int[cursors.length];
+		for (int i = 0; i < 20000; i++) {
+			int which = rand.nextInt(cursors.length);
+			EditTree.Cursor c = cursors[which];
+			int pos = Math.min(positions[which], sb.length());
+			assertEquals(pos, c.position());
+			int op = rand.nextInt(10);
+			if (op < 4) {
+				char ch = (char) ('a' + rand.nextInt(26));
+				c.insert(ch);
+				sb.insert(pos, ch);
+				pos++;
+			} else if (op < 5 && pos > 0) {
+				assertEquals(sb.charAt(pos - 1), c.deleteBackward());
+				sb.deleteCharAt(--pos);
+			} else if (op < 6) {
+				// an edit that bypasses the cursors
+				int at = rand.nextInt(sb.length() + 1);
+				t.add('!', at);
+				sb.insert(at, '!');
+			} else {
+				int k = op < 9 ? rand.nextInt(7) - 3 : rand.nextInt(sb.length() + 1) - pos;
+				if (pos + k >= 0 && pos + k <= sb.length()) {
+					c.moveBy(k);
+					pos += k;
+				}
+			}
+			positions[which] = pos;
+			if (pos < sb.length()) {
+				assertEquals(sb.charAt(pos), c.charAt());
+			}
+		}
+		assertEquals(sb.toString(), t.toString());
+	}
+
+	@Test
+	public void testAnchors() {
+		EditTree t = new EditTree("the quick brown fox");
+		EditTree.Anchor q = t.anchor(4);
+		EditTree.Anchor f = t.anchor(16);
+		t.add("very ", 4);
+		assertEquals(9, t.positionOf(q));
+		assertEquals(21, t.positionOf(f));
+		t.delete(0, 4);
+		assertEquals(5, t.positionOf(q));
+		// the deleted character's anchor is gone; the others stay put
+		t.delete(5);
+		assertEquals(-1, t.positionOf(q));
+		assertEquals(16, t.positionOf(f));
+		EditTree tail = t.split(10);
+		assertEquals(-1, t.positionOf(f));
+		t.concatenate(tail);
+		assertEquals(16, t.positionOf(f));
+		t.removeAnchor(f);
+		assertEquals(-1, t.positionOf(f));
+		try {
+			new EditTree("abc").positionOf(q);
+			fail("Did not throw IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// success
+		}
+		try {
+			t.anchor(t.size());
+			fail("Did not throw IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+			// success
+		}
+	}
+
+	@Test
+	public void testDeadAnchorsAreDropped() {
+		EditTree t = new EditTree("0123456789");
+		List<EditTree.Anchor> deleted = new ArrayList<EditTree.Anchor>();
+		for (int i = 0; i < 100; i++) {
+			deleted.add(t.anchor(5));
+			t.delete(5);
+			t.add('x', 5);
+		}
+		// pruned each time the list doubles
+		assertTrue(t.anchorCount() < 32);
+		EditTree.Anchor kept = t.anchor(0);
+		EditTree.Anchor split = t.anchor(9);
+		t.split(8);
+		t.snapshot();
+		t.add('!');
+		assertEquals(1, t.anchorCount());
+		assertEquals(0, t.positionOf(kept));
+		assertEquals(-1, t.positionOf(split));
+		for (EditTree.Anchor anchor : deleted) {
+			assertEquals(-1, t.positionOf(anchor));
+		}
+	}
+
+	@Test
+	public void testAnchorsAgainstBruteForce() {
+		// ids stands for the characters of t, each of which has its own number
+		Random rand = new Random(230);
+		EditTree t = new EditTree();
+		List<Integer> ids = new ArrayList<Integer>();
+		List<EditTree.Anchor> anchors = new ArrayList<EditTree.Anchor>();
+		List<Integer> anchored = new ArrayList<Integer>();
+		List<EditTree> snapshots = new ArrayList<EditTree>();
+		int next = 0;
+		for (int i = 0; i < 2000; i++) {
+			int op = rand.nextInt(20);
+			if (op < 8 || ids.size() < 3) {
+				int pos = rand.nextInt(ids.size() + 1);
+				t.add('x', pos);
+				ids.add(pos, next++);
+			} else if (op < 11) {
+				int pos = rand.nextInt(ids.size());
+				t.delete(pos);
+				ids.remove(pos);
+			} else if (op < 12) {
+				int pos = rand.nextInt(ids.size() + 1);
+				t.add("yyy", pos);
+				ids.addAll(pos, Arrays.asList(next, next + 1, next + 2));
+				next += 3;
+			} else if (op < 13) {
+				int start = rand.nextInt(ids.size() - 2);
+				int length = rand.nextInt(ids.size() - start - 1);
+				t.delete(start, length);
+				ids.subList(start, start + length).clear();
+			} else if (op < 14) {
+				EditTree tail = t.split(rand.nextInt(ids.size()));
+				tail.add('z', 0);
+				ids.add(t.size(), next++);
+				t.concatenate(tail);
+			} else if (op < 15) {
+				// a piece of an older version shares nodes with t
+				EditTree other = new EditTree("ww");
+				if (!snapshots.isEmpty() && snapshots.get(0).size() > 2) {
+					other = snapshots.get(0).split(snapshots.get(0).size() - 2);
+				}
+				for (int j = 0; j < other.size(); j++) {
+					ids.add(next++);
+				}
+				t.concatenate(other);
+			} else if (op < 17) {
+				EditTree snapshot = t.snapshot();
+				snapshot.delete(0);
+				snapshot.add('s', snapshot.size() / 2);
+				snapshots.add(0, snapshot);
+			} else {
+				int pos = rand.nextInt(ids.size());
+				anchors.add(t.anchor(pos));
+				anchored.add(ids.get(pos));
+			}
+			assertEquals(ids.size(), t.size());
+			if (i % 10 == 0) {
+				for (int j = 0; j < anchors.size(); j++) {
+					assertEquals(ids.indexOf(anchored.get(j)), t.positionOf(anchors.get(j)));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testChars() {
+		assertEquals(0, new EditTree().chars().count());
+		StringBuilder sb = new StringBuilder();
+		Random rand = new Random(230);
+		for (int i = 0; i < 100000; i++) {
+			sb.append((char) ('a' + rand.nextInt(26)));
+		}
+		String str = sb.toString();
+		EditTree classic = new EditTree();
+		for (int i = 0; i < 1000; i++) {
+			classic.add(str.charAt(i), rand.nextInt(i + 1));
+		}
+		classic.delete(0, 1000 - 1);
+		classic.delete(0);
+		classic.add(str, 0);
+		EditBuffer<?>[] trees = { classic, new ChunkedEditTree(str, 64) };
+		for (EditBuffer<?> t : trees) {
+			assertEquals(str, t.chars().collect(StringBuilder::new, StringBuilder::appendCodePoint,
+					StringBuilder::append).toString());
+			assertEquals(str.chars().sum(), t.chars().parallel().sum());
+			assertEquals(str.chars().filter(c -> c == 'e').count(), t.chars().parallel().filter(c -> c == 'e').count());
+			assertArrayEquals(str.chars().skip(500).limit(1000).toArray(),
+					t.chars().parallel().skip(500).limit(1000).toArray());
+
+			// every split is exact and the pieces cover the tree in order
+			Spliterator.OfInt whole = t.chars().spliterator();
+			assertTrue(whole.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.ORDERED));
+			List<Spliterator.OfInt> pieces = new ArrayList<Spliterator.OfInt>();
+			pieces.add(whole);
+			for (int round = 0; round < 6; round++) {
+				for (int j = pieces.size() - 1; j >= 0; j--) {
+					Spliterator.OfInt prefix = pieces.get(j).trySplit();
+					if (prefix != null) {
+						pieces.add(j, prefix);
+					}
+				}
+			}
+			assertTrue(pieces.size() > 32);
+			StringBuilder read = new StringBuilder();
+			for (Spliterator.OfInt piece : pieces) {
+				long expected = piece.estimateSize();
+				int before = read.length();
+				piece.tryAdvance((int c) -> read.append((char) c));
+				piece.forEachRemaining((int c) -> read.append((char) c));
+				assertEquals(expected, read.length() - before);
+			}
+			assertEquals(str, read.toString());
+		}
+	}
+
+	@Test
+	public void testParallelBuildAndCopy() {
+		int n = 5 * Node.PARALLEL_THRESHOLD + 123;
+		StringBuilder sb = new StringBuilder();
+		Random rand = new Random(230);
+		for (int i = 0; i < n; i++) {
+			sb.append(rand.nextInt(20) == 0 ? '\n' : (char) ('a' + rand.nextInt(26)));
+		}
+		EditTree t = new EditTree(sb);
+		assertEquals(sb.toString(), t.toString());
+		assertEquals(Node.floorLog2(n), t.height());
+		assertEquals(t.height(), checkedHeight(t.getRoot()));
+		assertEquals(sb.toString().split("\n", -1).length, t.lineCount());
+		assertEquals(n / 2, t.getRoot().rank);
+		assertEquals(n / 4, t.getRoot().left.rank);
+
+		EditTree copy = new EditTree(t);
+		assertEquals(t.toDebugString(), copy.toDebugString());
+		assertEquals(t.lineCount(), copy.lineCount());
+		Set<Node> nodes = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+		collect(t.getRoot(), nodes);
+		Set<Node> copied = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+		collect(copy.getRoot(), copied);
+		assertEquals(n, copied.size());
+		copied.retainAll(nodes);
+		assertTrue(copied.isEmpty());
+		copy.add('!', n / 2);
+		assertEquals(sb.toString(), t.toString());
+	}
+
+	private static void collect(Node n, Set<Node> nodes) {
+		if (n != Node.NULL_NODE) {
+			nodes.add(n);
+			collect(n.left, nodes);
+			collect(n.right, nodes);
+		}
+	}
+
+	// the real height of n, checking every rank and balance code on the way
+	private static int checkedHeight(Node n) {
+		if (n == Node.NULL_NODE) {
+			return -1;
+		}
+		int left = checkedHeight(n.left);
+		int right = checkedHeight(n.right);
+		assertEquals(n.left.slowSize(), n.rank);
+		assertEquals(left > right ? Node.Code.LEFT : left < right ? Node.Code.RIGHT : Node.Code.SAME, n.balance);
+		return Math.max(left, right) + 1;
+	}
+}
@@ -0,0 +1,680 @@
+package editortrees;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// An EditTree kept durable in a directory by an append-only journal of its
+// edits. The directory holds numbered generations: snapshot-G is the text at
+// the start of generation G, saved with EditTreeFormat, and journal-G records
+// every edit made since. Generation 0 starts out empty and has no snapshot.
+//
+// Each edit appends one record to an in-memory batch:
+//
+//   ADD_CHAR      byte 1, int pos, char ch
+//   ADD           byte 2, int pos, int length, length chars
+//   DELETE        byte 3, int pos
+//   DELETE_RANGE  byte 4, int start, int length
+//   APPEND        byte 5, int length, length chars (what concatenate added)
+//   TRUNCATE      byte 6, int pos (what split left behind)
+//
+// A batch is written to the journal as int length, int CRC-32 and its records
+// once it passes BATCH_BYTES or when the tree is synced, and the journal is
+// forced to disk every syncMillis by a background thread (or after every edit
+// if syncMillis is 0). A crash loses at most the edits since the last sync;
+// a batch torn by the crash fails its checksum and is dropped on recovery.
+//
+// Once the journals since the last snapshot pass compactBytes, a background
+// thread starts a new generation: under the lock it switches to journal-G+1
+// and takes an O(1) snapshot of the tree, then, with the lock released, saves
+// it to snapshot-G+1 and deletes the older files. Recovery loads the newest
+// snapshot and replays every journal from its generation on, so a crash at
+// any point of a compaction loses nothing.
+
+public class JournaledEditTree implements Closeable {
+
+	public static final long DEFAULT_SYNC_MILLIS = 100;
+	public static final long DEFAULT_COMPACT_BYTES = 64L << 20;
+	public static final int BATCH_BYTES = 1 << 16;
+
+	private static final int MAGIC = 0x45444A4C; // "EDJL"
+	private static final int VERSION = 1;
+	private static final int JOURNAL_HEADER = 8;
+	private static final int BATCH_HEADER = 8;
+
+	private static final byte ADD_CHAR = 1;
+	private static final byte ADD = 2;
+	private static final byte DELETE = 3;
+	private static final byte DELETE_RANGE = 4;
+	private static final byte APPEND = 5;
+	private static final byte TRUNCATE = 6;
+
+	private static final String SNAPSHOT = "snapshot-";
+	private static final String JOURNAL = "journal-";
+	private static final String TEMPORARY = ".tmp";
+
+	private final Path dir;
+	private final long syncMillis;
+	private final long compactBytes;
+	private final EditTree tree;
+	private final ScheduledThreadPoolExecutor background;
+	private final Object compactLock; // held for the whole of a compaction
+
+	// the fields below are guarded by this object's lock
+	private FileChannel journal;
+	private long generation; // of the journal being appended to
+	private long journalBytes; // in every journal since the last snapshot
+	private ByteBuffer batch; // records not yet written, after room for the batch header
+	private boolean dirty; // whether anything was written since the last force
+	private boolean compacting; // whether a background compaction is queued or running
+	private IOException failure; // the first write that failed; no edits are taken after it
+	private boolean closed;
+
+	/**
+	 * Opens the journaled tree in dir with the default sync interval and
+	 * compaction threshold.
+	 *
+	 * @param dir
+	 * @throws IOException if dir can't be read or written, or holds a corrupt
+	 *                     snapshot or journal
+	 */
+	public JournaledEditTree(Path dir) throws IOException {
+		this(dir, DEFAULT_SYNC_MILLIS, DEFAULT_COMPACT_BYTES);
+	}
+
+	/**
+	 * Opens the journaled tree in dir, creating dir if needed, and recovers its
+	 * text from the newest snapshot and the journals after it. A batch torn by
+	 * a crash at the end of the last journal is dropped.
+	 *
+	 * @param dir
+	 * @param syncMillis   how often the journal is forced to disk; 0 forces it
+	 *                     after every edit
+	 * @param compactBytes how many journal bytes may build up before a new
+	 *                     snapshot is saved; 0 never saves one on its own
+	 * @throws IOException              if dir can't be read or written, or
+	 *                                  holds a corrupt snapshot or journal
+	 * @throws IllegalArgumentException if syncMillis or compactBytes is negative
+	 */
+	public JournaledEditTree(Path dir, long syncMillis, long compactBytes) throws IOException {
+		if (syncMillis < 0 || compactBytes < 0) {
+			throw new IllegalArgumentException("syncMillis and compactBytes must not be negative");
+		}
+		this.dir = dir;
+		this.syncMillis = syncMillis;
+		this.compactBytes = compactBytes;
+		this.compactLock = new Object();
+		this.batch = ByteBuffer.allocate(BATCH_BYTES);
+		this.batch.position(BATCH_HEADER);
+		Files.createDirectories(dir);
+
+		// the newest snapshot is the base; files of older generations and
+		// unfinished snapshots are left over from an interrupted compaction
+		long base = -1;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				long g = generationOf(file, SNAPSHOT);
+				if (g > base) {
+					base = g;
+				}
+			}
+		}
+		this.tree = base < 0 ? new EditTree() : EditTreeFormat.load(snapshotFile(base));
+		base = Math.max(base, 0);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				long g = Math.max(generationOf(file, SNAPSHOT), generationOf(file, JOURNAL));
+				if (file.getFileName().toString().endsWith(TEMPORARY) || g >= 0 && g < base) {
+					Files.delete(file);
+				}
+			}
+		}
+
+		this.generation = base;
+		while (Files.exists(journalFile(this.generation + 1))) {
+			this.journalBytes += replay(journalFile(this.generation), false);
+			this.generation++;
+		}
+		Path last = journalFile(this.generation);
+		if (Files.exists(last)) {
+			this.journalBytes += replay(last, true);
+			this.journal = FileChannel.open(last, StandardOpenOption.WRITE);
+			this.journal.position(this.journal.size());
+		} else {
+			this.journal = createJournal(last);
+			this.journalBytes += JOURNAL_HEADER;
+		}
+
+		this.background = new ScheduledThreadPoolExecutor(2, r -> {
+			Thread t = new Thread(r, "JournaledEditTree " + dir);
+			t.setDaemon(true);
+			return t;
+		});
+		if (syncMillis > 0) {
+			this.background.scheduleWithFixedDelay(this::syncInBackground, syncMillis, syncMillis,
+					TimeUnit.MILLISECONDS);
+		}
+		this.maybeCompact();
+	}
+
+	/**
+	 * @param ch character to add to the end of this tree
+	 */
+	public synchronized void add(char ch) {
+		this.add(ch, this.tree.size());
+	}
+
+	/**
+	 * @param ch  character to add
+	 * @param pos character added in this inorder position
+	 * @throws IndexOutOfBoundsException if pos is negative or too large for this
+	 *                                   tree
+	 * @throws UncheckedIOException      if the journal can't be written
+	 */
+	public synchronized void add(char ch, int pos) throws IndexOutOfBoundsException {
+		this.checkWritable();
+		this.tree.add(ch, pos);
+		this.reserve(7).put(ADD_CHAR).putInt(pos).putChar(ch);
+		this.logged();
+	}
+
+	/**
+	 * @param s   characters to add
+	 * @param pos position of the first added character
+	 * @throws IndexOutOfBoundsException if pos is negative or too large for this
+	 *                                   tree
+	 * @throws UncheckedIOException      if the journal can't be written
+	 */
+	public synchronized void add(CharSequence s, int pos) throws IndexOutOfBoundsException {
+		this.checkWritable();
+		this.tree.add(s, pos);
+		if (s.length() > 0) {
+			this.reserve(9 + 2 * s.length()).put(ADD).putInt(pos).putInt(s.length());
+			this.putChars(s);
+			this.logged();
+		}
+	}
+
+	/**
+	 * @param pos position of character to delete from this tree
+	 * @return the character that is deleted
+	 * @throws IndexOutOfBoundsException
+	 * @throws UncheckedIOException      if the journal can't be written
+	 */
+	public synchronized char delete(int pos) throws IndexOutOfBoundsException {
+		this.checkWritable();
+		char result = this.tree.delete(pos);
+		this.reserve(5).put(DELETE).putInt(pos);
+		this.logged();
+		return result;
+	}
+
+	/**
+	 * @param start  position of beginning of string to delete
+	 * @param length length of string to delete
+	 * @return an EditTree containing the deleted string
+	 * @throws IndexOutOfBoundsException unless both start and start+length-1 are
+	 *                                   in range for this tree.
+	 * @throws UncheckedIOException      if the journal can't be written
+	 */
+	public synchronized EditTree delete(int start, int length) throws IndexOutOfBoundsException {
+		this.checkWritable();
+		EditTree result = this.tree.delete(start, length);
+		this.reserve(9).put(DELETE_RANGE).putInt(start).putInt(length);
+		this.logged();
+		return result;
+	}
+
+	/**
+	 * Appends the contents of other to this tree and empties other. The journal
+	 * records the appended characters, in O(K) time for K of them.
+	 *
+	 * @param other
+	 * @throws UncheckedIOException if the journal can't be written
+	 */
+	public synchronized void concatenate(EditTree other) {
+		this.checkWritable();
+		// other is emptied by the join, so its text is read from a snapshot
+		EditTree text = other.snapshot();
+		this.tree.concatenate(other);
+		if (text.size() > 0) {
+			this.reserve(5 + 2 * text.size()).put(APPEND).putInt(text.size());
+			CharBuffer chars = this.batch.asCharBuffer();
+			text.get(0, text.size(), chars);
+			this.batch.position(this.batch.position() + 2 * text.size());
+			this.logged();
+		}
+	}
+
+	/**
+	 * @param pos where to split this tree
+	 * @return a new tree containing all of the elements of this tree whose
+	 *         positions are >= pos. It is not journaled.
+	 * @throws IndexOutOfBoundsException
+	 * @throws UncheckedIOException      if the journal can't be written
+	 */
+	public synchronized EditTree split(int pos) throws IndexOutOfBoundsException {
+		this.checkWritable();
+		EditTree result = this.tree.split(pos);
+		this.reserve(5).put(TRUNCATE).putInt(pos);
+		this.logged();
+		return result;
+	}
+
+	/**
+	 * Writes out the current batch and forces the journal to disk, so every
+	 * edit made so far survives a crash.
+	 *
+	 * @throws IOException if the journal can't be written now or couldn't be
+	 *                     earlier
+	 */
+	public synchronized void sync() throws IOException {
+		this.flush();
+		this.maybeCompact();
+	}
+
+	/**
+	 * Starts a new generation and saves the current text as its snapshot, then
+	 * deletes the older snapshot and journals. The lock is only held while the
+	 * journals are switched, so edits may go on while the snapshot is saved.
+	 *
+	 * @throws IOException if the snapshot or the new journal can't be written
+	 */
+	public void compact() throws IOException {
+		synchronized (this.compactLock) {
+			EditTree text;
+			long g;
+			synchronized (this) {
+				if (this.closed) {
+					return;
+				}
+				this.flush();
+				try {
+					this.journal.close();
+					g = this.generation + 1;
+					this.journal = createJournal(journalFile(g));
+				} catch (IOException e) {
+					this.failure = e;
+					throw e;
+				}
+				this.generation = g;
+				this.journalBytes = JOURNAL_HEADER;
+				text = this.tree.snapshot();
+			}
+			Path temporary = this.dir.resolve(SNAPSHOT + g + TEMPORARY);
+			try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				EditTreeFormat.write(text, out, EditTreeFormat.Encoding.UTF_16, true);
+				out.force(false);
+			}
+			Files.move(temporary, snapshotFile(g), StandardCopyOption.ATOMIC_MOVE);
+			syncDirectory(this.dir);
+			for (long old = g - 1; old >= 0; old--) {
+				boolean found = Files.deleteIfExists(journalFile(old));
+				if (!Files.deleteIfExists(snapshotFile(old)) && !found) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Syncs the journal, waits for any compaction to finish and releases the
+	 * files. Later edits throw IllegalStateException.
+	 *
+	 * @throws IOException if the journal can't be written now or couldn't be
+	 *                     earlier
+	 */
+	@Override
+	public void close() throws IOException {
+		this.background.shutdown();
+		try {
+			this.background.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			if (this.closed) {
+				return;
+			}
+			try {
+				this.sync();
+			} finally {
+				this.closed = true;
+				this.journal.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of characters in this tree
+	 */
+	public synchronized int size() {
+		return this.tree.size();
+	}
+
+	/**
+	 * @param pos position in the tree
+	 * @return the character at that position
+	 * @throws IndexOutOfBoundsException
+	 */
+	public synchronized char get(int pos) throws IndexOutOfBoundsException {
+		return this.tree.get(pos);
+	}
+
+	/**
+	 * @param pos    location of the beginning of the string to retrieve
+	 * @param length length of the string to retrieve
+	 * @return string of length that starts in position pos
+	 * @throws IndexOutOfBoundsException unless both pos and pos+length-1 are
+	 *                                   legitimate indexes within this tree.
+	 */
+	public synchronized String get(int pos, int length) throws IndexOutOfBoundsException {
+		return this.tree.get(pos, length);
+	}
+
+	/**
+	 * @param s   the string to search for
+	 * @param pos the position in the tree to begin the search
+	 * @return the position in this tree of the first occurrence of s that does
+	 *         not occur before position pos; -1 if s does not occur
+	 */
+	public synchronized int find(String s, int pos) {
+		return this.tree.find(s, pos);
+	}
+
+	/**
+	 * @return a tree holding the current text, in O(1) time, for reading or for
+	 *         edits that the journal doesn't see
+	 */
+	public synchronized EditTree snapshot() {
+		return this.tree.snapshot();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return this.tree.toString();
+	}
+
+	private void checkWritable() {
+		if (this.closed) {
+			throw new IllegalStateException("closed");
+		} else if (this.failure != null) {
+			throw new UncheckedIOException(this.failure);
+		}
+	}
+
+	// returns the batch with room for count more bytes, writing it out or
+	// growing it first if needed
+	private ByteBuffer reserve(int count) {
+		if (this.batch.remaining() < count) {
+			this.writeBatchUnchecked();
+			if (this.batch.remaining() < count) {
+				this.batch = ByteBuffer.allocate(BATCH_HEADER + count);
+				this.batch.position(BATCH_HEADER);
+			}
+		}
+		return this.batch;
+	}
+
+	private void putChars(CharSequence s) {
+		this.batch.asCharBuffer().append(s);
+		this.batch.position(this.batch.position() + 2 * s.length());
+	}
+
+	// called once a record is complete
+	private void logged() {
+		if (this.batch.position() >= BATCH_BYTES) {
+			this.writeBatchUnchecked();
+		}
+		if (this.syncMillis == 0) {
+			try {
+				this.sync();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	// writes out the batch and forces the journal to disk
+	private void flush() throws IOException {
+		if (this.failure != null) {
+			throw this.failure;
+		} else if (this.closed) {
+			return;
+		}
+		try {
+			this.writeBatch();
+			if (this.dirty) {
+				this.journal.force(false);
+				this.dirty = false;
+			}
+		} catch (IOException e) {
+			this.failure = e;
+			throw e;
+		}
+	}
+
+	private void writeBatchUnchecked() {
+		try {
+			this.writeBatch();
+		} catch (IOException e) {
+			this.failure = e;
+			throw new UncheckedIOException(e);
+		}
+		this.maybeCompact();
+	}
+
+	private void writeBatch() throws IOException {
+		int end = this.batch.position();
+		if (end == BATCH_HEADER) {
+			return;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(this.batch.array(), BATCH_HEADER, end - BATCH_HEADER);
+		this.batch.putInt(0, end - BATCH_HEADER).putInt(4, (int) crc.getValue());
+		this.batch.flip();
+		while (this.batch.hasRemaining()) {
+			this.journal.write(this.batch);
+		}
+		this.journalBytes += end;
+		this.dirty = true;
+		if (this.batch.capacity() > BATCH_BYTES) {
+			// a batch grown for one long record goes back to the usual size
+			this.batch = ByteBuffer.allocate(BATCH_BYTES);
+		}
+		this.batch.clear();
+		this.batch.position(BATCH_HEADER);
+	}
+
+	private void maybeCompact() {
+		if (this.compactBytes > 0 && this.journalBytes > this.compactBytes && !this.compacting
+				&& !this.background.isShutdown()) {
+			this.compacting = true;
+			this.background.execute(this::compactInBackground);
+		}
+	}
+
+	private void compactInBackground() {
+		try {
+			this.compact();
+		} catch (IOException e) {
+			synchronized (this) {
+				if (this.failure == null) {
+					this.failure = e;
+				}
+			}
+		} finally {
+			synchronized (this) {
+				this.compacting = false;
+			}
+		}
+	}
+
+	private void syncInBackground() {
+		try {
+			this.sync();
+		} catch (IOException e) {
+			// kept in failure, and thrown from the next edit or sync
+		}
+	}
+
+	/**
+	 * Applies the edits recorded in a journal to the tree.
+	 *
+	 * @param file
+	 * @param last whether file is the journal still being written, whose end may
+	 *             have been torn by a crash; it is cut back to its last whole
+	 *             batch
+	 * @return the length of the journal
+	 * @throws IOException if the journal is corrupt
+	 */
+	private long replay(Path file, boolean last) throws IOException {
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long length = in.size();
+			ByteBuffer header = ByteBuffer.allocate(8); // a journal or batch header
+			if (length < JOURNAL_HEADER && last) {
+				// created but never written to
+				in.truncate(0);
+				header.putInt(MAGIC).putInt(VERSION).flip();
+				in.write(header, 0);
+				in.force(false);
+				return JOURNAL_HEADER;
+			} else if (!readFully(in, header, JOURNAL_HEADER) || header.getInt() != MAGIC
+					|| header.getInt() != VERSION) {
+				throw new IOException(file + " is not a journal");
+			}
+			long pos = JOURNAL_HEADER;
+			ByteBuffer records = ByteBuffer.allocate(BATCH_BYTES);
+			CRC32 crc = new CRC32();
+			while (pos < length) {
+				int size = -1;
+				if (readFully(in, header, BATCH_HEADER)) {
+					size = header.getInt();
+				}
+				if (size < 0 || size > length - pos - BATCH_HEADER) {
+					break;
+				}
+				if (records.capacity() < size) {
+					records = ByteBuffer.allocate(size);
+				}
+				readFully(in, records, size);
+				crc.reset();
+				crc.update(records.array(), 0, size);
+				if (header.getInt() != (int) crc.getValue()) {
+					break;
+				}
+				this.apply(records, file);
+				pos += BATCH_HEADER + size;
+			}
+			if (pos < length) {
+				if (!last) {
+					throw new IOException(file + " is corrupt at byte " + pos);
+				}
+				in.truncate(pos);
+				in.force(false);
+			}
+			return pos;
+		}
+	}
+
+	// applies every record in records to the tree
+	private void apply(ByteBuffer records, Path file) throws IOException {
+		try {
+			while (records.hasRemaining()) {
+				byte op = records.get();
+				if (op == ADD_CHAR) {
+					int pos = records.getInt();
+					this.tree.add(records.getChar(), pos);
+				} else if (op == ADD || op == APPEND) {
+					int pos = op == ADD ? records.getInt() : this.tree.size();
+					int length = records.getInt();
+					CharBuffer chars = records.asCharBuffer();
+					chars.limit(length);
+					this.tree.add(chars, pos);
+					records.position(records.position() + 2 * length);
+				} else if (op == DELETE) {
+					this.tree.delete(records.getInt());
+				} else if (op == DELETE_RANGE) {
+					int start = records.getInt();
+					this.tree.delete(start, records.getInt());
+				} else if (op == TRUNCATE) {
+					this.tree.split(records.getInt());
+				} else {
+					throw new IOException(file + " holds an unknown record " + op);
+				}
+			}
+		} catch (RuntimeException e) {
+			// a record that fits the checksum but not the text
+			throw new IOException(file + " does not match its snapshot", e);
+		}
+	}
+
+	private static FileChannel createJournal(Path file) throws IOException {
+		FileChannel result = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+		ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER);
+		header.putInt(MAGIC).putInt(VERSION).flip();
+		while (header.hasRemaining()) {
+			result.write(header);
+		}
+		result.force(false);
+		syncDirectory(file.getParent());
+		return result;
+	}
+
+	// makes a created or renamed file in dir survive a crash, where the
+	// platform allows a directory to be opened
+	private static void syncDirectory(Path dir) {
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// not supported here; the rename is still atomic
+		}
+	}
+
+	// fills buffer with count bytes from in and flips it for reading; false if
+	// in ends first
+	private static boolean readFully(FileChannel in, ByteBuffer buffer, int count) throws IOException {
+		buffer.clear();
+		buffer.limit(count);
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer) < 0) {
+				return false;
+			}
+		}
+		buffer.flip();
+		return true;
+	}
+
+	// the generation in file's name, or -1 if it isn't named prefix and a number
+	private static long generationOf(Path file, String prefix) {
+		String name = file.getFileName().toString();
+		if (!name.startsWith(prefix)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(prefix.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private Path snapshotFile(long g) {
+		return this.dir.resolve(SNAPSHOT + g);
+	}
+
+	private Path journalFile(long g) {
+		return this.dir.resolve(JOURNAL + g);
+	}
+}
@@ -0,0 +1,182 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link editortrees.JournaledEditTree}.
+ */
+public class JournaledEditTreeTest {
+
+	private static TreeSet<String> list(Path dir) throws IOException {
+		TreeSet<String> result = new TreeSet<String>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				result.add(file.getFileName().toString());
+			}
+		}
+		return result;
+	}
+
+	// what a crash would leave on disk: the files as they are right now
+	private static Path copy(Path dir) throws IOException {
+		Path result = Files.createTempDirectory("journal");
+		for (String name : list(dir)) {
+			Files.copy(dir.resolve(name), result.resolve(name));
+		}
+		return result;
+	}
+
+	private static void delete(Path dir) throws IOException {
+		for (String name : list(dir)) {
+			Files.delete(dir.resolve(name));
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void testRecoversEveryKindOfEdit() throws IOException {
+		Path dir = Files.createTempDirectory("journal");
+		Path crashed = null;
+		try {
+			JournaledEditTree t = new JournaledEditTree(dir, 0, 0);
+			t.add("the fox", 0);
+			t.add(" quick", 3);
+			t.add('!');
+			t.add('?', 0);
+			assertEquals('?', t.delete(0));
+			assertEquals("quick ", t.delete(4, 6).toString());
+			t.concatenate(new EditTree(" jumps over"));
+			assertEquals(" over", t.split(14).toString());
+			assertEquals("the fox! jumps", t.toString());
+
+			// with syncMillis 0 every edit is on disk once it returns
+			crashed = copy(dir);
+			JournaledEditTree recovered = new JournaledEditTree(crashed, 0, 0);
+			assertEquals("the fox! jumps", recovered.toString());
+			recovered.close();
+
+			t.add('s', 3);
+			t.compact();
+			t.add('.');
+			assertEquals(new TreeSet<String>(Arrays.asList("journal-1", "snapshot-1")), list(dir));
+			delete(crashed);
+			crashed = copy(dir);
+			recovered = new JournaledEditTree(crashed, 0, 0);
+			assertEquals("thes fox! jumps.", recovered.toString());
+			recovered.close();
+
+			t.close();
+			t = new JournaledEditTree(dir, 0, 0);
+			assertEquals("thes fox! jumps.", t.toString());
+			t.close();
+		} finally {
+			delete(dir);
+			if (crashed != null) {
+				delete(crashed);
+			}
+		}
+	}
+
+	@Test
+	public void testTornBatchIsDropped() throws IOException {
+		Path dir = Files.createTempDirectory("journal");
+		Path crashed = null;
+		try {
+			// nothing is synced unless asked
+			JournaledEditTree t = new JournaledEditTree(dir, 1000000, 0);
+			t.add("abcdef", 0);
+			t.delete(2);
+			t.sync();
+			t.add("XYZ", 1);
+			t.sync();
+			t.close();
+
+			crashed = copy(dir);
+			Path journal = crashed.resolve("journal-0");
+			byte[] bytes = Files.readAllBytes(journal);
+			// the second batch holds one ADD record of 3 characters
+			Files.write(journal, Arrays.copyOf(bytes, bytes.length - 4));
+			t = new JournaledEditTree(crashed, 0, 0);
+			assertEquals("abdef", t.toString());
+			// later edits go after the last whole batch
+			t.add('!');
+			t.close();
+			t = new JournaledEditTree(crashed, 0, 0);
+			assertEquals("abdef!", t.toString());
+			t.close();
+
+			// a corrupt batch is dropped the same way
+			bytes = Files.readAllBytes(journal);
+			bytes[bytes.length - 1] ^= 1;
+			Files.write(journal, bytes);
+			t = new JournaledEditTree(crashed, 0, 0);
+			assertEquals("abdef", t.toString());
+			t.close();
+		} finally {
+			delete(dir);
+			if (crashed != null) {
+				delete(crashed);
+			}
+		}
+	}
+
+	@Test
+	public void testCompactionAgainstBruteForce() throws IOException {
+		Path dir = Files.createTempDirectory("journal");
+		try {
+			Random rand = new Random(22);
+			StringBuilder expected = new StringBuilder();
+			JournaledEditTree t = new JournaledEditTree(dir, 1, 4096);
+			for (int i = 0; i < 5000; i++) {
+				int op = rand.nextInt(10);
+				if (op < 5 || expected.length() < 2) {
+					int pos = rand.nextInt(expected.length() + 1);
+					char ch = (char) ('a' + rand.nextInt(26));
+					t.add(ch, pos);
+					expected.insert(pos, ch);
+				} else if (op < 7) {
+					int pos = rand.nextInt(expected.length() + 1);
+					String s = "<" + i + ">";
+					t.add(s, pos);
+					expected.insert(pos, s);
+				} else if (op < 9) {
+					int pos = rand.nextInt(expected.length());
+					assertEquals(expected.charAt(pos), t.delete(pos));
+					expected.deleteCharAt(pos);
+				} else {
+					int start = rand.nextInt(expected.length() - 1);
+					int length = rand.nextInt(expected.length() - start);
+					t.delete(start, length);
+					expected.delete(start, start + length);
+				}
+				if (i == 2500) {
+					t.compact();
+				}
+			}
+			t.close();
+			assertEquals(expected.toString(), t.toString());
+
+			TreeSet<String> files = list(dir);
+			assertEquals(2, files.size());
+			String snapshot = files.last();
+			assertTrue(snapshot.startsWith("snapshot-"));
+			assertEquals("journal-" + snapshot.substring("snapshot-".length()), files.first());
+			t = new JournaledEditTree(dir, 0, 0);
+			assertEquals(expected.toString(), t.toString());
+			t.close();
+		} finally {
+			delete(dir);
+		}
+	}
+}
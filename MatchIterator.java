@@ -0,0 +1,79 @@
+package editortrees;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+// The match iterator behind find and findAll in both kinds of tree. It runs
+// Knuth-Morris-Pratt over a CharIterator, so each character of the tree is
+// read at most once and the only state is the pattern's failure table.
+
+class MatchIterator implements PrimitiveIterator.OfInt {
+	private final String pattern;
+	// failure[i] is the length of the longest proper border of pattern[0..i]
+	private final int[] failure;
+	private final CharIterator chars;
+	private int pos;
+	private int matched;
+	private int next;
+
+	/**
+	 * @param pattern the string to look for, not empty
+	 * @param chars   the text, starting at pos
+	 * @param pos     the position in the text of the first character of chars
+	 */
+	MatchIterator(String pattern, CharIterator chars, int pos) {
+		this.pattern = pattern;
+		this.failure = new int[pattern.length()];
+		int k = 0;
+		for (int i = 1; i < pattern.length(); i++) {
+			while (k > 0 && pattern.charAt(i) != pattern.charAt(k)) {
+				k = this.failure[k - 1];
+			}
+			if (pattern.charAt(i) == pattern.charAt(k)) {
+				k++;
+			}
+			this.failure[i] = k;
+		}
+		this.chars = chars;
+		this.pos = pos;
+		this.next = advance();
+	}
+
+	// the start of the next match, or -1 once the text runs out
+	private int advance() {
+		int length = this.pattern.length();
+		if (this.matched == length) {
+			// keep the border so overlapping matches are found
+			this.matched = this.failure[length - 1];
+		}
+		while (this.chars.hasNext()) {
+			char c = this.chars.nextChar();
+			this.pos++;
+			while (this.matched > 0 && this.pattern.charAt(this.matched) != c) {
+				this.matched = this.failure[this.matched - 1];
+			}
+			if (this.pattern.charAt(this.matched) == c) {
+				this.matched++;
+				if (this.matched == length) {
+					return this.pos - length;
+				}
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return this.next != -1;
+	}
+
+	@Override
+	public int nextInt() {
+		if (this.next == -1) {
+			throw new NoSuchElementException();
+		}
+		int result = this.next;
+		this.next = advance();
+		return result;
+	}
+}
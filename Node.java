@@ -1,22 +1,24 @@
 package editortrees;
 
-import java.util.Stack;
-
-import editortrees.EditTree.MyWrapper;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 // A node in a height-balanced binary tree with rank.
 // Except for the NULL_NODE (if you choose to use one), one node cannot
-// belong to two different trees.
+// belong to two different trees, unless one is a snapshot of the other; then
+// the node is shared and neither tree changes it again. The parent of a shared
+// node is whichever one it had when it was last changed.
 
 public class Node {
 	public final static Node NULL_NODE = new Node();
 	public Node parent;
-	public DisplayableNodeWrapper dnw;
+	// created on demand by getDisplayableNodePart(), so trees that are never
+	// shown don't pay for a wrapper per node
+	private DisplayableNodeWrapper dnw;
 
 	public Node() {
 		this.left = null;
 		this.right = null;
-		this.dnw = new DisplayableNodeWrapper(this);
 		this.rank = 0;
 	}
 
@@ -26,7 +28,6 @@ public class Node {
 		this.right = NULL_NODE;
 		this.parent = parent;
 		this.balance = Code.SAME;
-		this.dnw = new DisplayableNodeWrapper(this);
 	}
 
 	enum Code {
@@ -54,6 +55,10 @@ public class Node {
 	Node left, right; // subtrees
 	int rank; // inorder position of this node within its own subtree.
 	Code balance;
+	int newlines; // number of '\n' characters in this subtree
+	// the token of the tree that may change this node in place; any other tree
+	// copies the node first (see EditTree.snapshot())
+	Object owner;
 	// Node parent; // You may want this field.
 	// Feel free to add other fields that you find useful
 
@@ -62,427 +67,61 @@ public class Node {
 	// For the following methods, you should fill in the details so that they work
 	// correctly
 
-	public Node add(Character ch, Node parent, MyWrapper wrapper) {
-		if (this == NULL_NODE)
-			return new Node(ch, parent);
-		this.right = this.right.add(ch, this, wrapper);
-		if (wrapper.neededUpdate()) {
-			String str = updateBalance(this, wrapper, true);
-			if (neededRotation(wrapper)) {
-				if (str.equals("RightFirst")) {
-					this.right = handleRotation(this.right, this.right.left, wrapper, str);
-					return handleRotation(this, this.right, wrapper, "SL");
-				} else {
-					return handleRotation(this, this.right, wrapper, str);
-				}
-			}
-		}
-		return this;
-	}
-
-	public Node add(Character ch, int pos, Node parent, MyWrapper wrapper) {
+	public int height(int i) {
+		int currentHeight = i;
+		int leftHeight = 0, rightHeight = 0;
+		// This happens when you get to a leaf node.
 		if (this == NULL_NODE) {
-			this.rank = 0;
-			return new Node(ch, parent);
-		}
-		if (pos > this.rank) {// if needs to go right
-			this.right = this.right.add(ch, pos - this.rank - 1, this, wrapper);
-			if (wrapper.neededUpdate()) {// update balance codes and handle rotation
-				String str = updateBalance(this, wrapper, true);
-				if (neededRotation(wrapper)) {
-					if (str.equals("RightFirst")) {
-						this.right = handleRotation(this.right, this.right.left, wrapper, str);
-						return handleRotation(this, this.right, wrapper, "SL");//return the rotated subtree
-					} else {
-						return handleRotation(this, this.right, wrapper, str);//return the rotated subtree
-					}
-				}
-			}
-		} else if (pos < this.rank) {// if needs to go left
-			this.rank++;
-			this.left = this.left.add(ch, pos, this, wrapper);
-			if (wrapper.neededUpdate()) {// update balance codes and handle rotation
-				String str = updateBalance(this, wrapper, false);
-				if (neededRotation(wrapper)) {
-					if (str.equals("LeftFirst")) {
-						this.left = handleRotation(this.left, this.left.right, wrapper, str);
-						return handleRotation(this, this.left, wrapper, "SR");//return the rotated subtree
-					} else {
-						return handleRotation(this, this.left, wrapper, str);//return the rotated subtree
-					}
-				}
-			}
-		} else if (pos == this.rank) {// if is the right spot for adding
-			this.rank++;
-			this.left = this.left.add(ch, pos, this, wrapper);
-			if (wrapper.neededUpdate()) {// update balance codes and handle rotation
-				String str = updateBalance(this, wrapper, false);
-				if (neededRotation(wrapper)) {
-					if (str.equals("LeftFirst")) {
-						this.left = handleRotation(this.left, this.left.right, wrapper, str);
-						return handleRotation(this, this.left, wrapper, "SR");//return the rotated subtree
-					} else {
-						return handleRotation(this, this.left, wrapper, str);//return the rotated subtree
-					}
-				}
-			}
-		}
-		return this;
-	}
-
-	/**
-	 * 
-	 * @param wrapper
-	 * @return true if (a) rotation(s) is needed
-	 */
-	public boolean neededRotation(MyWrapper wrapper) {
-		return wrapper.rotationCount == 0 && wrapper.doubleRotation
-				|| wrapper.rotationCount == 1 && wrapper.doubleRotation
-				|| wrapper.rotationCount == 0 && !wrapper.doubleRotation;
-	}
-	
-	/**
-	 * 
-	 * @param parent
-	 * @param child
-	 * @param wrapper
-	 * @param str
-	 * @return direct each tree into appropriate rotation method
-	 */
-	public Node handleRotation(Node parent, Node child, MyWrapper wrapper, String str) {
-		if (str.equals("SR")) {
-			wrapper.rotationCount++;
-			wrapper.setFalse();//stop updating the balance code
-			return singleRightRotate(parent, child, false, wrapper);
-		} else if (str.equals("RightFirst")) {
-			wrapper.rotationCount++;
-			wrapper.doubleRotation = true;
-			return singleRightRotate(parent, child, true, wrapper);
-		} else if (str.equals("SL")) {
-			wrapper.rotationCount++;
-			wrapper.setFalse();//stop updating the balance code
-			return singleLeftRotate(parent, child, false, wrapper);
-		} else if (str.equals("LeftFirst")) {
-			wrapper.rotationCount++;
-			wrapper.doubleRotation = true;
-			return singleLeftRotate(parent, child, true, wrapper);
-		}
-		return parent;
-	}
-
-	/**
-	 * 
-	 * @param parent
-	 * @param child
-	 * @param isDouble
-	 * @param wrapper
-	 * @return the root of a (left)rotated tree
-	 */
-	public Node singleLeftRotate(Node parent, Node child, boolean isDouble, MyWrapper wrapper) {
-		// handle single rotation
-		if (!isDouble) {
-			if (wrapper.gcDirection == ' ') {
-				parent.balance = Code.SAME;
-				child.balance = Code.SAME;
-			} else if (wrapper.gcDirection == 'R') {
-				parent.balance = Code.LEFT;
-			} else if (wrapper.gcDirection == 'L') {
-				parent.balance = Code.SAME;
-			}
-			child.balance = Code.SAME;
-		} else if (isDouble) { // handle double rotation
-			if (child.balance == Code.LEFT) {
-				wrapper.gcDirection = 'L';
-				parent.balance = Code.SAME;
-				child.balance = Code.LEFT;
-			} else if (child.balance == Code.RIGHT) {
-				wrapper.gcDirection = 'R';
-				parent.balance = Code.LEFT;
-				child.balance = Code.LEFT;
-			} else if (child.balance == Code.SAME) {
-				// if child is a leaf
-				parent.balance = Code.SAME;
-				child.balance = Code.LEFT;
-			}
-
-		}
-		parent.right = child.left;
-		child.left = parent;
-		if (parent.parent == null) {
-			child.parent = null;// update the parent of child after rotation
-		} else {
-			child.parent = parent.parent;// update the parent of child after rotation
-		}
-		parent.parent = child;// update the parent after rotation
-		child.rank = child.rank + parent.rank + 1;
-		return child;
-	}
-
-	/**
-	 * 
-	 * @param parent
-	 * @param child
-	 * @param isDouble
-	 * @param wrapper
-	 * @return the root of a (right)rotated tree
-	 */
-	public Node singleRightRotate(Node parent, Node child, boolean isDouble, MyWrapper wrapper) {
-		if (!isDouble) { // handle single rotation
-			if (wrapper.specialCase) {
-				parent.balance = Code.LEFT;
-				child.balance = Code.RIGHT;
-				wrapper.setFalse();
-			} else if (wrapper.gcDirection == ' ') {
-				parent.balance = Code.SAME;
-				child.balance = Code.SAME;
-			} else if (wrapper.gcDirection == 'R') {
-				parent.balance = Code.SAME;
-				child.balance = Code.SAME;
-			} else if (wrapper.gcDirection == 'L') {
-				parent.balance = Code.RIGHT;
-				child.balance = Code.SAME;
-			}
-		} else if (isDouble) { // handle double rotation
-			if (child.balance == Code.LEFT) {
-				wrapper.gcDirection = 'L';
-				parent.balance = Code.RIGHT;
-				child.balance = Code.RIGHT;
-			} else if (child.balance == Code.RIGHT) {
-				wrapper.gcDirection = 'R';
-				parent.balance = Code.SAME;
-				child.balance = Code.RIGHT;
-			} else if (child.balance == Code.SAME) {
-				parent.balance = Code.SAME;
-				child.balance = Code.RIGHT;
-			}
-		}
-		parent.left = child.right;
-		child.right = parent;
-		if (parent.parent == null) {
-			child.parent = null;// update the parent of child after rotation
-		} else {
-			child.parent = parent.parent;// update the parent of child after rotation
+			return currentHeight - 1;
 		}
-		parent.parent = child;// update the parent after rotation
-		parent.rank = parent.rank - child.rank - 1;
-		return child;
-	}
-
-	public String updataBalanceForCOn(Node node, MyWrapper w, boolean toTheRight) {
-		if (toTheRight) {
-			// was balanced
-			if (node.balance == Code.SAME) {
-				node.balance = Code.RIGHT;
-			}
-			// was tipped right
-			else if (node.right.balance == Code.LEFT && node.balance == Code.RIGHT) {
-				return "RightFirst";
-			} else if (node.balance == Code.RIGHT) {
-				return "SL";
-			}
+		// Get height of left sub tree
+		if (this.balance == Code.LEFT) {
+			return leftHeight = this.left.height(currentHeight + 1);
 		}
-		return "";
+		return rightHeight = this.right.height(currentHeight + 1);
 	}
 
 	/**
+	 * copies the elements of this subtree, in order, into dst
 	 * 
-	 * @param node
-	 * @param wrapper
-	 * @param toTheRight
-	 * @return a string which suggests which type of rotation should take place
+	 * @param dst
+	 * @param offset where the first element goes
+	 * @return the offset just past the last element copied
 	 */
-	public String updateBalance(Node node, MyWrapper w, boolean toTheRight) {
-		if (toTheRight) {
-			// was balanced
-			if (node.balance == Code.SAME) {
-				node.balance = Code.RIGHT;
-			}
-			// was tipped right
-			else if (node.balance == Code.RIGHT) {
-				if (node.right.balance == Code.RIGHT) {
-					return "SL";
-				} else if (node.right.balance == Code.LEFT) {
-					return "RightFirst";
-				}
-			}
-			// was tipped left
-			else if (node.balance == Code.LEFT) {
-				node.balance = Code.SAME;
-				w.setFalse();
-			}
-		} else {
-			// was balanced
-			if (node.balance == Code.SAME) {
-				node.balance = Code.LEFT;
-			}
-			// was tipped right
-			else if (node.balance == Code.RIGHT) {
-				node.balance = Code.SAME;
-				w.setFalse();
-			}
-			// was tipped left
-			else if (node.balance == Code.LEFT) {
-				if (node.left.balance == Code.LEFT) {
-					return "SR";
-				} else if (node.left.balance == Code.RIGHT) {
-					return "LeftFirst";
-				}
-			}
-		}
-		return "";
-	}
-
-	public Node delete(int toBeFound, MyWrapper wrapper) {
-		if (this.rank > toBeFound) {// if needs to find the target in the left subtree
-			this.rank--;
-			this.left = this.left.delete(toBeFound, wrapper);
-			// update balance codes and handle rotation
-			if (wrapper.neededUpdate() || wrapper.rotationCount > 0) {
-				if (!wrapper.specialCase) {
-					String str = updateBalanceWhenDeleting(this, wrapper, false);
-					if (str.equals("RightFirst")) {
-						this.right = handleRotation(this.right, this.right.left, wrapper, str);
-						return handleRotation(this, this.right, wrapper, "SL");
-					} else {
-						return handleRotation(this, this.right, wrapper, str);
-					}
-				}
-			}
-		} else if (this.rank < toBeFound) {// if needs to find the target in the right subtree
-			this.right = this.right.delete(toBeFound - this.rank - 1, wrapper);
-			// update balance codes and handle rotation
-			if (wrapper.neededUpdate() || wrapper.rotationCount > 0) {
-				if (!wrapper.specialCase) {
-					String str = updateBalanceWhenDeleting(this, wrapper, true);
-					// new handle rotation
-					if (str.equals("LeftFirst")) {
-						this.left = handleRotation(this.left, this.left.right, wrapper, str);
-						return handleRotation(this, this.left, wrapper, "SR");
-					} else {
-						return handleRotation(this, this.left, wrapper, str);
-					}
-				}
-			}
-		} else {// if is the target
-			if (!this.hasLeft() && !this.hasRight()) {
-				return NULL_NODE;
-			} else if (this.hasLeft() && !this.hasRight()) {
-				return this.left;
-			} else if (!this.hasLeft() && this.hasRight()) {
-				return this.right;
-			} else {//if needs to find the successor of the node
-				if (!this.right.hasLeft()) {
-					this.element = this.right.element;
-					if (this.right.right != NULL_NODE) {
-						this.right = this.right.right;
-						this.right.parent = this;
-					} else {
-						this.right = NULL_NODE;
-					}
-				} else {
-					this.right = replaceBy(this.right, wrapper);
-					this.element = wrapper.replaceBy;
-				}
-				// update balance codes and handle rotation
-				if (wrapper.neededUpdate() || wrapper.rotationCount > 0) {
-					if (!wrapper.specialCase) {
-						String str = updateBalanceWhenDeleting(this, wrapper, true);
-						if (str.equals("LeftFirst")) {
-							this.left = handleRotation(this.left, this.left.right, wrapper, str);
-							return handleRotation(this, this.left, wrapper, "SR");
-						} else {
-							return handleRotation(this, this.left, wrapper, str);
-						}
-					}
-				}
-			}
+	public int fill(char[] dst, int offset) {
+		if (this == NULL_NODE) {
+			return offset;
 		}
-		return this;
+		offset = this.left.fill(dst, offset);
+		dst[offset++] = this.element;
+		return this.right.fill(dst, offset);
 	}
 
 	/**
+	 * copies the elements at positions [from, to) of this subtree, in order,
+	 * into dst. Only the two boundary paths and the nodes in between are
+	 * visited.
 	 * 
-	 * @param node
-	 * @param wrapper
-	 * @return the left bottom most node of the right subtree of the given node
+	 * @param dst
+	 * @param offset where the first element goes
+	 * @param from
+	 * @param to
+	 * @return the offset just past the last element copied
 	 */
-	public Node replaceBy(Node node, MyWrapper wrapper) {
-		if (!node.left.hasLeft()) {// if is the one
-			char result = node.left.element;
-			node.left = NULL_NODE;
-			node.rank--;
-			wrapper.replaceBy = result;
-			String str = updateBalanceWhenDeleting(node, wrapper, false);
-			if (!str.equals("")) {
-				if (str.equals("RightFirst")) {
-					node.right = handleRotation(node.right, node.right.left, wrapper, str);
-					return handleRotation(node, node.right, wrapper, "SL");
-				} else {
-					return handleRotation(node, node.right, wrapper, str);
-				}
-			} else {
-				return node;
-			}
-		} else {// if needs to proceed down the tree
-			node.rank--;
-			node.left = replaceBy(node.left, wrapper);
-			if (wrapper.neededUpdate() || wrapper.rotationCount > 0) {
-				String str = updateBalanceWhenDeleting(node, wrapper, false);
-				handleRotation(node, node.left, wrapper, str);
-			}
-			return node;
+	public int fill(char[] dst, int offset, int from, int to) {
+		if (this == NULL_NODE || from >= to) {
+			return offset;
 		}
-	}
-
-	public String updateBalanceWhenDeleting(Node node, MyWrapper b, boolean isRight) {
-		Code originalBalance = node.balance;
-		if (isRight) {
-			if (originalBalance == Code.SAME) {
-				node.balance = Code.LEFT;
-				b.setFalse();
-			} else if (originalBalance == Code.LEFT) {
-				if (node.left.balance == Code.LEFT) {
-					return "SR";
-				} else if (node.left.balance == Code.SAME) {
-					b.specialCase = true;
-					return "SR";
-				} else if (node.left.balance == Code.RIGHT) {
-					return "LeftFirst";
-				}
-			} else {// tipped right at first and delete the right
-				node.balance = Code.SAME;
-			}
-
-		} else if (!isRight) {
-			if (originalBalance == Code.SAME) {
-				node.balance = Code.RIGHT;
-				b.setFalse();
-			} else if (originalBalance == Code.RIGHT) {
-				if (node.right.balance == Code.RIGHT) {
-					return "SL";
-				} else if (node.right.balance == Code.LEFT) {
-					return "RightFirst";
-
-				}
-			} else {// tipped left at first and delete the left
-				node.balance = Code.SAME;
-			}
+		if (from < this.rank) {
+			offset = this.left.fill(dst, offset, from, Math.min(to, this.rank));
 		}
-		return "";
-	}
-
-	public int height(int i) {
-		int currentHeight = i;
-		int leftHeight = 0, rightHeight = 0;
-		// This happens when you get to a leaf node.
-		if (this == NULL_NODE) {
-			return currentHeight - 1;
+		if (from <= this.rank && this.rank < to) {
+			dst[offset++] = this.element;
 		}
-		// Get height of left sub tree
-		if (this.balance == Code.LEFT) {
-			return leftHeight = this.left.height(currentHeight + 1);
+		if (to > this.rank + 1) {
+			offset = this.right.fill(dst, offset, Math.max(from - this.rank - 1, 0), to - this.rank - 1);
 		}
-		return rightHeight = this.right.height(currentHeight + 1);
+		return offset;
 	}
 
 	public void debugString(StringBuilder sb) {
@@ -497,6 +136,9 @@ public class Node {
 	}
 
 	public DisplayableNodeWrapper getDisplayableNodePart() {
+		if (this.dnw == null) {
+			this.dnw = new DisplayableNodeWrapper(this);
+		}
 		return this.dnw;
 	}
 
@@ -549,125 +191,183 @@ public class Node {
 		return this.height(0);
 	}
 
-	public Node copy(Node oldroot, Node parent) {
+	public Node copy(Node oldroot, Node parent, Object owner) {
 		if (oldroot == NULL_NODE) {
 			return NULL_NODE;
 		}
-		Node result = new Node(oldroot.element, parent);
-		result.balance = oldroot.balance;
-		result.rank = oldroot.rank;
+		Node result = copyOf(oldroot, parent, owner);
 		if (oldroot.hasLeft()) {
-			result.left = copy(oldroot.left, result);
+			result.left = copy(oldroot.left, result, owner);
 		}
 		if (oldroot.hasRight()) {
-			result.right = copy(oldroot.right, result);
+			result.right = copy(oldroot.right, result, owner);
 		}
 		return result;
 	}
 
-	public Node buildFromStr(Node root, String s) {
-		if (s.isEmpty()) {
-			return NULL_NODE;
-		} else if (s.length() == 1) {
-			return new Node(s.charAt(0), root);
+	/**
+	 * Copies the subtree oldroot, which has size nodes, into new nodes of the
+	 * same shape. Large subtrees are copied by a fork/join task that copies the
+	 * two sides of each node in parallel.
+	 * 
+	 * @param oldroot
+	 * @param size   number of nodes in oldroot's subtree
+	 * @param parent parent of the returned subtree root
+	 * @param owner  owner token of the tree the nodes are copied for
+	 * @return the root of the copy
+	 */
+	public static Node copy(Node oldroot, int size, Node parent, Object owner) {
+		if (size >= PARALLEL_THRESHOLD) {
+			return ForkJoinPool.commonPool().invoke(new CopyTask(oldroot, size, parent, owner));
 		}
-		int mid = s.length() / 2;//divide the current string into two part and build the left and right respectly 
-		Node result = new Node(s.charAt(mid), root);
-		result.rank = mid - 1;// assign rank
-		result.left = buildFromStr(result, s.substring(0, mid));
-		result.right = buildFromStr(result, s.substring(mid + 1));
+		return oldroot.copy(oldroot, parent, owner);
+	}
+
+	// oldroot's fields, without its subtrees
+	private static Node copyOf(Node oldroot, Node parent, Object owner) {
+		Node result = new Node(oldroot.element, parent);
+		result.balance = oldroot.balance;
+		result.rank = oldroot.rank;
+		result.newlines = oldroot.newlines;
+		result.owner = owner;
 		return result;
 	}
 
-	//since we know that rank of node is the size of its left subtree
-	//we can use this knowledge to recursively calculate the size of the whole tree
-	public int size(Node n) {
-		if (n == NULL_NODE) {
-			return 0;
+	// subtrees with at least this many nodes are built and copied with the two
+	// sides of the root in parallel; below it a task costs more than it saves
+	static final int PARALLEL_THRESHOLD = 1 << 16;
+
+	private static class CopyTask extends RecursiveTask<Node> {
+		private static final long serialVersionUID = 1L;
+
+		private final Node oldroot;
+		private final int size;
+		private final Node parent;
+		private final Object owner;
+
+		CopyTask(Node oldroot, int size, Node parent, Object owner) {
+			this.oldroot = oldroot;
+			this.size = size;
+			this.parent = parent;
+			this.owner = owner;
 		}
-		if (n.hasRight()) {
-			return n.rank + size(n.right) + 1;
+
+		@Override
+		protected Node compute() {
+			if (this.size < PARALLEL_THRESHOLD) {
+				return this.oldroot.copy(this.oldroot, this.parent, this.owner);
+			}
+			Node result = copyOf(this.oldroot, this.parent, this.owner);
+			CopyTask left = new CopyTask(this.oldroot.left, this.oldroot.rank, result, this.owner);
+			left.fork();
+			result.right = new CopyTask(this.oldroot.right, this.size - this.oldroot.rank - 1, result, this.owner)
+					.compute();
+			result.left = left.join();
+			return result;
 		}
-		return n.rank + 1;
 	}
-	
+
 	/**
+	 * Builds a balanced tree holding the characters at positions [from, to) of s
+	 * in O(to - from) time, without copying any part of s. Large ranges are
+	 * built by a fork/join task that builds the two sides of each node in
+	 * parallel, so s is read from several threads; the shape is the same
+	 * either way.
 	 * 
 	 * @param s
-	 * @param pos
-	 * @param node
-	 * @return a stack that contains all the nodes which are in the path of finding the target node
+	 * @param from
+	 * @param to
+	 * @param parent parent of the returned subtree root
+	 * @param owner  owner token of the tree the nodes are built for
+	 * @return the root of the new subtree
 	 */
-	public Stack<Node> fillStack(Stack<Node> s, int pos, Node node) {
-		if (node.rank > pos) {
-			s.push(node);
-			return fillStack(s, pos, node.left);
-		} else if (node.rank < pos) {
-			s.push(node);
-			return fillStack(s, pos - node.rank - 1, node.right);
-		} else {
-			s.push(node);
-			return s;
+	public static Node build(CharSequence s, int from, int to, Node parent, Object owner) {
+		if (to - from >= PARALLEL_THRESHOLD) {
+			return ForkJoinPool.commonPool().invoke(new BuildTask(s, from, to, parent, owner));
 		}
+		return buildInOrder(s, from, to, parent, owner);
 	}
 
-	public Node concatenate(Node node, EditTree other, int height, MyWrapper wrap) {
-		if (wrap.direction) {//if we concatenate the other tree to the right the this tree
-			if (height == other.height()) {
-				char q = other.delete(0);//we delete the left most element first and get the element
-				Node nodeQ = new Node(q, node.parent);//create a new node Q
-				nodeQ.rank = size(node);
-				nodeQ.left = node;
-				nodeQ.right = other.getRoot();
-				node.parent = nodeQ;
-				other.getRoot().parent = nodeQ;
-				wrap.neededUpdate = true;
-				if (nodeQ.left.height(0) > nodeQ.right.height(0)) {//update the balance Code of Q
-					nodeQ.balance = Code.LEFT;
-				} else if (nodeQ.left.height(0) < nodeQ.right.height(0)) {
-					nodeQ.balance = Code.RIGHT;
-				} else if (nodeQ.left.height(0) == nodeQ.right.height(0)) {
-					nodeQ.balance = Code.SAME;
-				}
-				return nodeQ;
-			}//handle rotation after we concatenate 
-			if (node.balance == Code.LEFT) {
-				node.right = node.right.concatenate(node.right, other, height - 2, wrap);
-			} else if (node.balance == Code.RIGHT || node.balance == Code.SAME) {
-				node.right = node.right.concatenate(node.right, other, height - 1, wrap);
-				if (wrap.neededUpdate()) {
-					String str = updataBalanceForCOn(node, wrap, true);
-					if (neededRotation(wrap)) {
-						if (str.equals("RightFirst")) {
-							node.right = handleRotation(node.right, node.right.left, wrap, str);
-							Node result = handleRotation(node, node.right, wrap, "SL");
-							return result;
-						} else {
-							Node result = handleRotation(node, node.right, wrap, str);
-							return result;
-						}
-					}
-				}
-			}
-		} else if (!wrap.direction) {//if we concatenate the other tree to the left the this tree
-			if (height == other.height()) {
-				char q = other.delete(other.size() - 1);//we delete the right most element of the other tree
-				Node nodeQ = new Node(q, node.parent);//create a new node Q
-				nodeQ.rank = size(other.getRoot());
-				nodeQ.right = node;
-				nodeQ.left = other.getRoot();
-				node.parent = nodeQ;
-				// need update balance
-				other.getRoot().parent = nodeQ;
-				return nodeQ;
-			}
-			if (node.balance == Code.RIGHT) {//update the balance Code of Q
-				node.left = node.left.concatenate(node.left, other, height - 2, wrap);
-			} else if (node.balance == Code.LEFT || node.balance == Code.SAME) {
-				node.left = node.left.concatenate(node.left, other, height - 1, wrap);
+	private static Node buildInOrder(CharSequence s, int from, int to, Node parent, Object owner) {
+		if (from >= to) {
+			return NULL_NODE;
+		}
+		int mid = from + (to - from) / 2;//divide the current range into two parts and build the left and right respectively
+		Node result = buildRoot(s, from, mid, to, parent, owner);
+		result.left = buildInOrder(s, from, mid, result, owner);
+		result.right = buildInOrder(s, mid + 1, to, result, owner);
+		result.countNewlines();
+		return result;
+	}
+
+	// the root of the subtree for [from, to), which holds the character at mid
+	private static Node buildRoot(CharSequence s, int from, int mid, int to, Node parent, Object owner) {
+		Node result = new Node(s.charAt(mid), parent);
+		result.rank = mid - from;
+		result.owner = owner;
+		// the left part is never smaller than the right, and a part of size k
+		// built this way has height floor(log2(k))
+		if (floorLog2(mid - from) > floorLog2(to - mid - 1)) {
+			result.balance = Code.LEFT;
+		}
+		return result;
+	}
+
+	private static class BuildTask extends RecursiveTask<Node> {
+		private static final long serialVersionUID = 1L;
+
+		private final CharSequence s;
+		private final int from, to;
+		private final Node parent;
+		private final Object owner;
+
+		BuildTask(CharSequence s, int from, int to, Node parent, Object owner) {
+			this.s = s;
+			this.from = from;
+			this.to = to;
+			this.parent = parent;
+			this.owner = owner;
+		}
+
+		@Override
+		protected Node compute() {
+			if (this.to - this.from < PARALLEL_THRESHOLD) {
+				return buildInOrder(this.s, this.from, this.to, this.parent, this.owner);
 			}
+			int mid = this.from + (this.to - this.from) / 2;
+			Node result = buildRoot(this.s, this.from, mid, this.to, this.parent, this.owner);
+			BuildTask left = new BuildTask(this.s, this.from, mid, result, this.owner);
+			left.fork();
+			result.right = new BuildTask(this.s, mid + 1, this.to, result, this.owner).compute();
+			result.left = left.join();
+			result.countNewlines();
+			return result;
 		}
-		return node;
+	}
+
+	/**
+	 * Recomputes newlines from the children. Call after any change to this
+	 * node's element or subtrees.
+	 */
+	void countNewlines() {
+		this.newlines = this.left.newlines + this.right.newlines + (this.element == '\n' ? 1 : 0);
+	}
+
+	// floor(log2(k)), or -1 when k is 0 (the height of an empty tree)
+	static int floorLog2(int k) {
+		return 31 - Integer.numberOfLeadingZeros(k);
+	}
+
+	//since we know that rank of node is the size of its left subtree
+	//we can use this knowledge to recursively calculate the size of the whole tree
+	public int size(Node n) {
+		if (n == NULL_NODE) {
+			return 0;
+		}
+		if (n.hasRight()) {
+			return n.rank + size(n.right) + 1;
+		}
+		return n.rank + 1;
 	}
 	
 	//similar to size() in that we use the rank to determine the position in the tree to get
@@ -0,0 +1,96 @@
+package editortrees;
+
+// What a timed operation of an EditTree or a ChunkedEditTree started from.
+// Each call has its own, kept on its stack, so reads of one snapshot on
+// several threads are each counted. A tree keeps running counts of its single
+// and double rotations and of the levels its splits and joins went through;
+// it hands them in when the operation begins and again when it ends, and the
+// differences are what the operation did.
+
+final class Timing {
+
+	// whether this JVM has the jdk.jfr API; Java 8 only has it since update 262
+	private static final boolean FLIGHT_RECORDER = hasFlightRecorder();
+
+	private final long start;
+	private final long singles, doubles, levels; // the tree's counts when it began
+	private final EditTreeEvent event; // null unless a recording takes it
+
+	private Timing(long singles, long doubles, long levels, boolean recorded) {
+		this.singles = singles;
+		this.doubles = doubles;
+		this.levels = levels;
+		if (recorded) {
+			this.event = new EditTreeEvent();
+			this.event.begin();
+		} else {
+			this.event = null;
+		}
+		this.start = System.nanoTime();
+	}
+
+	/**
+	 * Starts timing an operation if there are metrics or a Flight Recorder
+	 * recording takes EditTreeEvents.
+	 *
+	 * @param metrics the tree's metrics, or null
+	 * @param singles the tree's single rotations so far
+	 * @param doubles the tree's double rotations so far
+	 * @param levels  the levels the tree's splits and joins went through so far
+	 * @return the timing, or null if the operation is not timed
+	 */
+	static Timing begin(EditTreeMetrics metrics, long singles, long doubles, long levels) {
+		boolean recorded = FLIGHT_RECORDER && EditTreeEvent.isRecorded();
+		if (metrics == null && !recorded) {
+			return null;
+		}
+		return new Timing(singles, doubles, levels, recorded);
+	}
+
+	/**
+	 * Reports the operation, on the characters from pos to pos + length, to
+	 * metrics and to Flight Recorder. It visited nodes besides the levels the
+	 * tree split and joined through meanwhile.
+	 *
+	 * @param metrics the tree's metrics, or null
+	 * @param op
+	 * @param size    the size of the tree afterwards
+	 * @param pos
+	 * @param length
+	 * @param nodes
+	 * @param singles the tree's single rotations so far
+	 * @param doubles the tree's double rotations so far
+	 * @param levels  the levels the tree's splits and joins went through so far
+	 */
+	void end(EditTreeMetrics metrics, EditTreeMetrics.Operation op, int size, int pos, int length, long nodes,
+			long singles, long doubles, long levels) {
+		singles -= this.singles;
+		doubles -= this.doubles;
+		nodes += levels - this.levels;
+		if (metrics != null) {
+			metrics.record(op, System.nanoTime() - this.start, nodes, singles, doubles);
+		}
+		EditTreeEvent e = this.event;
+		if (e != null) {
+			e.end();
+			if (e.shouldCommit()) {
+				e.operation = op.name();
+				e.size = size;
+				e.position = pos;
+				e.length = length;
+				e.rotations = singles + 2 * doubles;
+				e.nodesTouched = nodes;
+				e.commit();
+			}
+		}
+	}
+
+	private static boolean hasFlightRecorder() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+}
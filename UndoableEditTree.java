@@ -0,0 +1,298 @@
+package editortrees;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// An EditTree that remembers its edits so they can be undone and redone. Each
+// history entry records where an edit happened and how long it was, and holds
+// the affected characters only while they are out of the tree: a deletion
+// keeps what it removed, and an undone insertion keeps what undoing it cut
+// out. Undoing or redoing cuts that range out with split() or puts it back
+// with concatenate(), so every step is O(log N) however long the edit was.
+//
+// Consecutive characters typed one after another (add(ch, pos) right after the
+// previous one) are coalesced into one entry. The history is limited to a
+// budget that counts each held character and each entry as one unit; the
+// oldest entries are dropped to stay within it.
+
+public class UndoableEditTree {
+
+	public static final int DEFAULT_BUDGET = 1 << 20;
+
+	private final EditTree tree;
+	private final int budget;
+	private final Deque<Entry> undo; // the most recent edit last
+	private final Deque<Entry> redo; // the next edit to redo last
+	private int retained; // total cost of the entries in both deques
+	private boolean coalescing; // whether the last undo entry may take the next typed character
+
+	/**
+	 * an edit in the history. text holds the characters of the range while they
+	 * are not in the tree, and is null while they are.
+	 */
+	private static class Entry {
+		final boolean insert;
+		final int pos;
+		int length;
+		EditTree text;
+
+		Entry(boolean insert, int pos, int length, EditTree text) {
+			this.insert = insert;
+			this.pos = pos;
+			this.length = length;
+			this.text = text;
+		}
+
+		int cost() {
+			return this.text == null ? 1 : 1 + this.text.size();
+		}
+	}
+
+	/**
+	 * Construct an empty tree with the default history budget
+	 */
+	public UndoableEditTree() {
+		this("", DEFAULT_BUDGET);
+	}
+
+	/**
+	 * Create a tree whose toString is s and whose history holds about budget
+	 * characters and entries.
+	 *
+	 * @param s
+	 * @param budget
+	 * @throws IllegalArgumentException if budget is negative
+	 */
+	public UndoableEditTree(CharSequence s, int budget) {
+		if (budget < 0) {
+			throw new IllegalArgumentException("budget must not be negative");
+		}
+		this.tree = new EditTree(s);
+		this.budget = budget;
+		this.undo = new ArrayDeque<Entry>();
+		this.redo = new ArrayDeque<Entry>();
+	}
+
+	/**
+	 * @param ch character to add to the end of this tree
+	 */
+	public void add(char ch) {
+		this.add(ch, this.tree.size());
+	}
+
+	/**
+	 * Adds ch at pos. If the previous edit was also a character added just
+	 * before pos, both are undone together.
+	 *
+	 * @param ch  character to add
+	 * @param pos character added in this inorder position
+	 * @throws IndexOutOfBoundsException if pos is negative or too large for this
+	 *                                   tree
+	 */
+	public void add(char ch, int pos) throws IndexOutOfBoundsException {
+		this.tree.add(ch, pos);
+		Entry last = this.undo.peekLast();
+		if (this.coalescing && last.pos + last.length == pos) {
+			last.length++;
+			this.clearRedo();
+		} else {
+			Entry entry = new Entry(true, pos, 1, null);
+			this.record(entry);
+			// unless the budget has dropped it already
+			this.coalescing = this.undo.peekLast() == entry;
+		}
+	}
+
+	/**
+	 * @param s   characters to add
+	 * @param pos position of the first added character
+	 * @throws IndexOutOfBoundsException if pos is negative or too large for this
+	 *                                   tree
+	 */
+	public void add(CharSequence s, int pos) throws IndexOutOfBoundsException {
+		this.tree.add(s, pos);
+		if (s.length() > 0) {
+			this.record(new Entry(true, pos, s.length(), null));
+		}
+	}
+
+	/**
+	 * @param pos position of character to delete from this tree
+	 * @return the character that is deleted
+	 * @throws IndexOutOfBoundsException
+	 */
+	public char delete(int pos) throws IndexOutOfBoundsException {
+		char result = this.tree.delete(pos);
+		this.record(new Entry(false, pos, 1, new EditTree(result)));
+		return result;
+	}
+
+	/**
+	 * @param start  position of beginning of string to delete
+	 * @param length length of string to delete
+	 * @return an EditTree containing the deleted string
+	 * @throws IndexOutOfBoundsException unless both start and start+length-1 are
+	 *                                   in range for this tree.
+	 */
+	public EditTree delete(int start, int length) throws IndexOutOfBoundsException {
+		EditTree result = this.tree.delete(start, length);
+		if (length > 0) {
+			// the history keeps its own version, which the caller's edits to
+			// result don't reach
+			this.record(new Entry(false, start, length, result.snapshot()));
+		}
+		return result;
+	}
+
+	/**
+	 * Undoes the most recent edit that has not been undone, in O(log N) time.
+	 *
+	 * @return false if there was nothing to undo
+	 */
+	public boolean undo() {
+		Entry entry = this.undo.pollLast();
+		if (entry == null) {
+			return false;
+		}
+		this.retained -= entry.cost();
+		this.apply(entry, !entry.insert);
+		this.redo.addLast(entry);
+		this.retained += entry.cost();
+		this.coalescing = false;
+		this.trim();
+		return true;
+	}
+
+	/**
+	 * Redoes the most recently undone edit, in O(log N) time.
+	 *
+	 * @return false if there was nothing to redo
+	 */
+	public boolean redo() {
+		Entry entry = this.redo.pollLast();
+		if (entry == null) {
+			return false;
+		}
+		this.retained -= entry.cost();
+		this.apply(entry, entry.insert);
+		this.undo.addLast(entry);
+		this.retained += entry.cost();
+		this.coalescing = false;
+		this.trim();
+		return true;
+	}
+
+	/**
+	 * @return true if undo() would change the tree
+	 */
+	public boolean canUndo() {
+		return !this.undo.isEmpty();
+	}
+
+	/**
+	 * @return true if redo() would change the tree
+	 */
+	public boolean canRedo() {
+		return !this.redo.isEmpty();
+	}
+
+	// puts the entry's range back into the tree if insert is true, and cuts it
+	// out otherwise
+	private void apply(Entry entry, boolean insert) {
+		if (insert) {
+			if (entry.pos == this.tree.size()) {
+				this.tree.concatenate(entry.text);
+			} else {
+				EditTree tail = this.tree.split(entry.pos);
+				this.tree.concatenate(entry.text);
+				this.tree.concatenate(tail);
+			}
+			entry.text = null;
+		} else {
+			EditTree text = this.tree.split(entry.pos);
+			if (entry.length < text.size()) {
+				this.tree.concatenate(text.split(entry.length));
+			}
+			entry.text = text;
+		}
+	}
+
+	// adds a new edit to the history, which makes the undone ones unreachable
+	private void record(Entry entry) {
+		this.clearRedo();
+		this.undo.addLast(entry);
+		this.retained += entry.cost();
+		this.coalescing = false;
+		this.trim();
+	}
+
+	private void clearRedo() {
+		while (!this.redo.isEmpty()) {
+			this.retained -= this.redo.pollLast().cost();
+		}
+	}
+
+	// drops the oldest edits, then the furthest redos, until the history fits
+	// the budget
+	private void trim() {
+		while (this.retained > this.budget && !this.undo.isEmpty()) {
+			this.retained -= this.undo.pollFirst().cost();
+		}
+		while (this.retained > this.budget && !this.redo.isEmpty()) {
+			this.retained -= this.redo.pollFirst().cost();
+		}
+		if (this.undo.isEmpty()) {
+			this.coalescing = false;
+		}
+	}
+
+	/**
+	 * @return the number of characters in this tree
+	 */
+	public int size() {
+		return this.tree.size();
+	}
+
+	/**
+	 * @param pos position in the tree
+	 * @return the character at that position
+	 * @throws IndexOutOfBoundsException
+	 */
+	public char get(int pos) throws IndexOutOfBoundsException {
+		return this.tree.get(pos);
+	}
+
+	/**
+	 * @param pos    location of the beginning of the string to retrieve
+	 * @param length length of the string to retrieve
+	 * @return string of length that starts in position pos
+	 * @throws IndexOutOfBoundsException unless both pos and pos+length-1 are
+	 *                                   legitimate indexes within this tree.
+	 */
+	public String get(int pos, int length) throws IndexOutOfBoundsException {
+		return this.tree.get(pos, length);
+	}
+
+	/**
+	 * @param s   the string to search for
+	 * @param pos the position in the tree to begin the search
+	 * @return the position in this tree of the first occurrence of s that does
+	 *         not occur before position pos; -1 if s does not occur
+	 */
+	public int find(String s, int pos) {
+		return this.tree.find(s, pos);
+	}
+
+	/**
+	 * @return a tree holding the current text, in O(1) time, for reading or for
+	 *         edits that the history doesn't see
+	 */
+	public EditTree snapshot() {
+		return this.tree.snapshot();
+	}
+
+	@Override
+	public String toString() {
+		return this.tree.toString();
+	}
+}
@@ -0,0 +1,138 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link editortrees.UndoableEditTree}.
+ */
+public class UndoableEditTreeTest {
+
+	@Test
+	public void testTypingIsUndoneTogether() {
+		UndoableEditTree t = new UndoableEditTree();
+		assertFalse(t.undo());
+		for (char c : "hello".toCharArray()) {
+			t.add(c);
+		}
+		// typing somewhere else starts a new entry
+		t.add('>', 0);
+		t.add(' ', 1);
+		assertEquals("> hello", t.toString());
+		assertTrue(t.undo());
+		assertEquals("hello", t.toString());
+		assertTrue(t.undo());
+		assertEquals("", t.toString());
+		assertFalse(t.canUndo());
+		assertTrue(t.redo());
+		assertTrue(t.redo());
+		assertFalse(t.redo());
+		assertEquals("> hello", t.toString());
+	}
+
+	@Test
+	public void testUndoDeletes() {
+		UndoableEditTree t = new UndoableEditTree("the quick brown fox", 100);
+		assertEquals('t', t.delete(0));
+		EditTree cut = t.delete(3, 6);
+		assertEquals("quick ", cut.toString());
+		cut.add('!');
+		t.add("lazy ", 3);
+		assertEquals("he lazy brown fox", t.toString());
+		t.undo();
+		assertEquals("he brown fox", t.toString());
+		t.undo();
+		assertEquals("he quick brown fox", t.toString());
+		t.undo();
+		assertEquals("the quick brown fox", t.toString());
+		t.redo();
+		t.redo();
+		assertEquals("he brown fox", t.toString());
+		// a new edit makes the undone ones unreachable
+		t.add('T', 0);
+		assertFalse(t.canRedo());
+		assertEquals("The brown fox", t.toString());
+	}
+
+	@Test
+	public void testBudgetDropsOldestEdits() {
+		UndoableEditTree t = new UndoableEditTree("abcdefghij", 5);
+		t.delete(0, 3);
+		t.delete(0);
+		assertEquals("efghij", t.toString());
+		// the first delete holds 3 characters, the second 1, and each entry
+		// costs 1 more
+		assertTrue(t.undo());
+		assertFalse(t.undo());
+		assertEquals("defghij", t.toString());
+		t.add("XYZ", 0);
+		t.undo();
+		// the undone insertion holds 3 characters, within the budget
+		assertTrue(t.canRedo());
+		t.redo();
+		assertEquals("XYZdefghij", t.toString());
+	}
+
+	@Test
+	public void testZeroBudgetKeepsNothing() {
+		UndoableEditTree t = new UndoableEditTree("", 0);
+		t.add('a');
+		t.add('b');
+		t.add('c', 1);
+		t.delete(0);
+		assertEquals("cb", t.toString());
+		assertFalse(t.canUndo());
+		assertFalse(t.undo());
+	}
+
+	@Test
+	public void testRandomUndoRedo() {
+		Random rand = new Random(230);
+		UndoableEditTree t = new UndoableEditTree("", Integer.MAX_VALUE);
+		StringBuilder sb = new StringBuilder();
+		List<String> states = new ArrayList<String>();
+		states.add("");
+		for (int i = 0; i < 2000; i++) {
+			int op = rand.nextInt(4);
+			if (op == 0 || sb.length() < 2) {
+				int pos = rand.nextInt(sb.length() + 1);
+				t.add((char) ('a' + i % 26), pos);
+				sb.insert(pos, (char) ('a' + i % 26));
+			} else if (op == 1) {
+				int pos = rand.nextInt(sb.length() + 1);
+				t.add("xyz", pos);
+				sb.insert(pos, "xyz");
+			} else if (op == 2) {
+				int pos = rand.nextInt(sb.length());
+				t.delete(pos);
+				sb.deleteCharAt(pos);
+			} else {
+				int start = rand.nextInt(sb.length() - 1);
+				int length = 1 + rand.nextInt(sb.length() - start - 1);
+				t.delete(start, length);
+				sb.delete(start, start + length);
+			}
+			states.add(sb.toString());
+		}
+		int undone = 0;
+		while (t.undo()) {
+			undone++;
+			// typed runs share an entry, so compare against a state reached
+			// earlier
+			assertTrue(states.contains(t.toString()));
+		}
+		assertEquals("", t.toString());
+		for (int i = 0; i < undone; i++) {
+			assertTrue(t.redo());
+		}
+		assertEquals(sb.toString(), t.toString());
+		assertEquals(sb.length(), t.size());
+	}
+}
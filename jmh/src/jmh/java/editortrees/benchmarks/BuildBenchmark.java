@@ -0,0 +1,27 @@
+package editortrees.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import editortrees.EditBuffer;
+
+/**
+ * Building a tree from a String, the cost of opening a document.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BuildBenchmark {
+
+	@Benchmark
+	public EditBuffer<?> fromString(Document doc) {
+		return doc.newTree();
+	}
+}
@@ -0,0 +1,81 @@
+package editortrees.benchmarks;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import editortrees.ChunkedEditTree;
+import editortrees.EditBuffer;
+import editortrees.EditTree;
+
+/**
+ * The text that the benchmarks run against, shared by every benchmark of a
+ * trial. It is built once per trial from a fixed seed, so every run sees the
+ * same document and the same edit positions.
+ */
+@State(Scope.Benchmark)
+public class Document {
+
+	private static final String[] WORDS = { "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "a",
+			"tree", "of", "characters", "is", "balanced", "by", "height", "and", "rank" };
+
+	/**
+	 * The number of random positions kept; a power of two so benchmarks can
+	 * cycle through them with a mask.
+	 */
+	public static final int POSITIONS = 4096;
+
+	/**
+	 * The positions are all at least this far from the end of the text, so a
+	 * range read or a batch of deletes starting at any of them stays in bounds.
+	 */
+	public static final int MARGIN = 100;
+
+	@Param({ "1000", "100000", "10000000", "100000000" })
+	public int size;
+
+	@Param({ "classic", "chunked" })
+	public String impl;
+
+	public String text;
+
+	public int[] positions;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random rand = new Random(230);
+		StringBuilder sb = new StringBuilder(this.size + 16);
+		while (sb.length() < this.size) {
+			sb.append(WORDS[rand.nextInt(WORDS.length)]);
+			sb.append(rand.nextInt(12) == 0 ? '\n' : ' ');
+		}
+		sb.setLength(this.size);
+		this.text = sb.toString();
+		this.positions = new int[POSITIONS];
+		for (int i = 0; i < POSITIONS; i++) {
+			this.positions[i] = rand.nextInt(this.size - MARGIN);
+		}
+	}
+
+	/**
+	 * @return a new tree holding the whole text
+	 */
+	public EditBuffer<?> newTree() {
+		return newTree(this.text);
+	}
+
+	/**
+	 * @param s the text of the tree
+	 * @return a new tree of the implementation being benchmarked
+	 */
+	public EditBuffer<?> newTree(String s) {
+		if ("chunked".equals(this.impl)) {
+			return new ChunkedEditTree(s);
+		}
+		return new EditTree(s);
+	}
+}
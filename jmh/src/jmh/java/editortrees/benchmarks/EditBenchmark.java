@@ -0,0 +1,127 @@
+package editortrees.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import editortrees.EditBuffer;
+
+/**
+ * Operations that change the tree. Each invocation gets a freshly built tree
+ * of the benchmarked size and makes a batch of edits to it, so the size stays
+ * close to the parameter however long the run is. The rebuild happens outside
+ * the measured time, but at 100M characters it makes these the slowest
+ * benchmarks to run.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 30)
+public class EditBenchmark {
+
+	// small enough that even the 1K document changes size by at most a tenth
+	private static final int BATCH = Document.MARGIN;
+
+	@State(Scope.Thread)
+	public static class Fresh {
+		public EditBuffer<?> tree;
+
+		@Setup(Level.Invocation)
+		public void setUp(Document doc) {
+			this.tree = doc.newTree();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Halves {
+		public EditBuffer<?> left;
+		public EditBuffer<?> right;
+
+		@Setup(Level.Invocation)
+		public void setUp(Document doc) {
+			int mid = doc.size / 2;
+			this.left = doc.newTree(doc.text.substring(0, mid));
+			this.right = doc.newTree(doc.text.substring(mid));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public EditBuffer<?> append(Fresh fresh) {
+		EditBuffer<?> tree = fresh.tree;
+		for (int i = 0; i < BATCH; i++) {
+			tree.add('x');
+		}
+		return tree;
+	}
+
+	/**
+	 * Typing: each character goes just after the previous one.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public EditBuffer<?> insertSequential(Fresh fresh, Document doc) {
+		EditBuffer<?> tree = fresh.tree;
+		int pos = doc.positions[0];
+		for (int i = 0; i < BATCH; i++) {
+			tree.add('x', pos + i);
+		}
+		return tree;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public EditBuffer<?> insertRandom(Fresh fresh, Document doc) {
+		EditBuffer<?> tree = fresh.tree;
+		for (int i = 0; i < BATCH; i++) {
+			tree.add('x', doc.positions[i]);
+		}
+		return tree;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public EditBuffer<?> deleteRandom(Fresh fresh, Document doc) {
+		EditBuffer<?> tree = fresh.tree;
+		for (int i = 0; i < BATCH; i++) {
+			tree.delete(doc.positions[i]);
+		}
+		return tree;
+	}
+
+	/**
+	 * Cutting a tenth of the document.
+	 */
+	@Benchmark
+	public EditBuffer<?> deleteRange(Fresh fresh, Document doc) {
+		return fresh.tree.delete(doc.size / 3, doc.size / 10);
+	}
+
+	@Benchmark
+	public EditBuffer<?> split(Fresh fresh, Document doc) {
+		return fresh.tree.split(doc.size / 2);
+	}
+
+	@Benchmark
+	public EditBuffer<?> concatenate(Halves halves) {
+		return concatenate(halves.left, halves.right);
+	}
+
+	// both halves come from the same Document, so they are the same kind of tree
+	@SuppressWarnings("unchecked")
+	private static <T extends EditBuffer<T>> T concatenate(EditBuffer<?> left, EditBuffer<?> right) {
+		T tree = (T) left;
+		tree.concatenate((T) right);
+		return tree;
+	}
+}
@@ -0,0 +1,82 @@
+package editortrees.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import editortrees.CharIterator;
+import editortrees.EditBuffer;
+
+/**
+ * Operations that leave the tree unchanged, so one tree serves the whole
+ * trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ReadBenchmark {
+
+	// about one line of an editor window
+	private static final int LINE = 80;
+
+	private EditBuffer<?> tree;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp(Document doc) {
+		this.tree = doc.newTree();
+	}
+
+	private int nextPosition(Document doc) {
+		return doc.positions[this.next++ & (Document.POSITIONS - 1)];
+	}
+
+	@Benchmark
+	public char get(Document doc) {
+		return this.tree.get(nextPosition(doc));
+	}
+
+	@Benchmark
+	public String getRange(Document doc) {
+		return this.tree.get(nextPosition(doc), LINE);
+	}
+
+	/**
+	 * A find-next step: the next occurrence of a common word.
+	 */
+	@Benchmark
+	public int findNext(Document doc) {
+		return this.tree.find("fox", nextPosition(doc));
+	}
+
+	/**
+	 * A search that fails, so the whole text is read.
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int findMissing() {
+		return this.tree.find("fox jumps under");
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int iterate() {
+		int sum = 0;
+		CharIterator iter = this.tree.charIterator();
+		while (iter.hasNext()) {
+			sum += iter.nextChar();
+		}
+		return sum;
+	}
+}